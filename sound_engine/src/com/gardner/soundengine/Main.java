@@ -3,6 +3,7 @@ package com.gardner.soundengine;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
+import com.gardner.soundengine.desktop.batch.*;
 import com.gardner.soundengine.desktop.ui.*;
 import com.gardner.soundengine.desktop.microphone.*;
 import com.gardner.soundengine.transcription.*;
@@ -16,7 +17,13 @@ class Main {
         }
         JPanel panel;
 
-        if (ui.equals("file")) {
+        if (ui.equals("batch")) {
+            // No UI at all for this one; just transcribe a bunch of files and write a report.
+            String[] batchArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, batchArgs, 0, batchArgs.length);
+            BatchTranscriber.main(batchArgs);
+            return;
+        } else if (ui.equals("file")) {
             panel = new SoundEngineFilePanel();
         } else if(ui.equals("testMusicRendering")) {
             panel = new MusicDrawingTestPanel();
@@ -0,0 +1,170 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Times NoteAligner on big synthetic pieces, serially and with the wavefront-parallel matrix on
+ * 1, 2, 4 and 8 threads, and checks that every run comes up with exactly the same alignment.
+ * It also checks, on a bunch of random pieces, that linear space mode never finds a more
+ * expensive alignment than the matrix does at the same tempo.  Run it with
+ * "ant benchmark-alignment".
+ */
+public class AlignmentBenchmark {
+    private static final int[] SCORE_SIZES = {500, 1000, 2000};
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+    private static final int ROUNDS = 3;
+    private static final int LINEAR_SPACE_TRIALS = 20;
+    private static final int LINEAR_SPACE_SIZE = 400;
+    private static final String[] NOTE_NAMES = {"C", "D", "E", "F", "G", "A", "B"};
+    private static final double[] NOTE_BEATS = {.5, 1, 1, 1, 2};
+
+    public static void main(String[] args) {
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        // Give the JIT a chance to compile everything before we start timing.
+        runBenchmark(SCORE_SIZES[0], false);
+        for (int size : SCORE_SIZES) {
+            runBenchmark(size, true);
+        }
+        checkLinearSpace();
+    }
+
+    /**
+     * Align random pieces with the matrix, then switch the same aligner over to linear space
+     * (which keeps the tempo it had) and compare the costs of the two alignments.  Linear space
+     * takes a true minimum everywhere, so it should never cost more; see LinearSpaceAligner.
+     */
+    private static void checkLinearSpace() {
+        int same = 0;
+        int cheaper = 0;
+        int worse = 0;
+        for (int trial=0; trial<LINEAR_SPACE_TRIALS; trial++) {
+            Random random = new Random(1000 + trial);
+            SheetMusic music = makeMusic(LINEAR_SPACE_SIZE, random);
+            List<TranscribedNote> notes = perform(music, random);
+            NoteAligner aligner = new NoteAligner(music);
+            aligner.updateAlignment(notes);
+            double matrixCost = aligner.getAlignmentCost();
+            aligner.setLinearSpace(true);
+            double linearCost = aligner.getAlignmentCost();
+            if (linearCost > matrixCost + 1e-9 * matrixCost) {
+                worse++;
+                System.out.println(String.format("  trial %d: linear space cost %.4f, matrix " +
+                            "cost %.4f", trial, linearCost, matrixCost));
+            } else if (linearCost < matrixCost - 1e-9 * matrixCost) {
+                cheaper++;
+            } else {
+                same++;
+            }
+        }
+        System.out.println(String.format("Linear space vs. matrix on %d random %d note pieces: " +
+                    "%d same cost, %d cheaper, %d MORE EXPENSIVE", LINEAR_SPACE_TRIALS,
+                    LINEAR_SPACE_SIZE, same, cheaper, worse));
+    }
+
+    private static void runBenchmark(int size, boolean print) {
+        Random random = new Random(size);
+        SheetMusic music = makeMusic(size, random);
+        List<TranscribedNote> notes = perform(music, random);
+        if (print) {
+            System.out.println(size + " music notes, " + notes.size() + " transcribed notes");
+        }
+
+        NoteAligner serial = new NoteAligner(music);
+        long serialTime = align(serial, notes);
+        for (int round=1; round<ROUNDS; round++) {
+            serial = new NoteAligner(music);
+            serialTime = Math.min(serialTime, align(serial, notes));
+        }
+        if (print) {
+            System.out.println(String.format("  serial: %.1f ms", serialTime / 1e6));
+        }
+
+        for (int threads : THREAD_COUNTS) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long bestTime = Long.MAX_VALUE;
+            NoteAligner parallel = null;
+            for (int round=0; round<ROUNDS; round++) {
+                parallel = new NoteAligner(music);
+                parallel.setPool(pool);
+                bestTime = Math.min(bestTime, align(parallel, notes));
+            }
+            pool.shutdown();
+            if (print) {
+                System.out.println(String.format("  %d threads: %.1f ms, speedup %.2fx, %s",
+                            threads, bestTime / 1e6, serialTime / (double) bestTime,
+                            sameResult(serial, parallel) ? "identical" : "DIFFERENT"));
+            }
+        }
+    }
+
+    private static long align(NoteAligner aligner, List<TranscribedNote> notes) {
+        long start = System.nanoTime();
+        aligner.updateAlignment(notes);
+        aligner.getAlignment();
+        return System.nanoTime() - start;
+    }
+
+    private static boolean sameResult(NoteAligner first, NoteAligner second) {
+        if (Double.doubleToLongBits(first.getAlignmentCost())
+                != Double.doubleToLongBits(second.getAlignmentCost())) {
+            return false;
+        }
+        if (first.getBeatsPerMinute() != second.getBeatsPerMinute()) {
+            return false;
+        }
+        List<NotePair> firstPairs = first.getAlignment().getPairs();
+        List<NotePair> secondPairs = second.getAlignment().getPairs();
+        if (firstPairs.size() != secondPairs.size()) {
+            return false;
+        }
+        for (int i=0; i<firstPairs.size(); i++) {
+            NotePair a = firstPairs.get(i);
+            NotePair b = secondPairs.get(i);
+            if (a.getMusicNote() != b.getMusicNote()
+                    || a.getTranscribedNote() != b.getTranscribedNote()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SheetMusic makeMusic(int size, Random random) {
+        List<MusicNote> notes = new ArrayList<MusicNote>();
+        for (int i=0; i<size; i++) {
+            String name = NOTE_NAMES[random.nextInt(NOTE_NAMES.length)] + (4 + random.nextInt(2));
+            notes.add(new MusicNote(name, NOTE_BEATS[random.nextInt(NOTE_BEATS.length)]));
+        }
+        return new SheetMusic(notes);
+    }
+
+    /**
+     * A sloppy performance of the music, at about 100 beats per minute, with some notes left out,
+     * some extra ones thrown in, and pitches and timing a little off.
+     */
+    private static List<TranscribedNote> perform(SheetMusic music, Random random) {
+        List<TranscribedNote> notes = new ArrayList<TranscribedNote>();
+        double secondsPerBeat = .6;
+        double time = 0.0;
+        for (MusicNote note : music.getNotes()) {
+            double length = note.getBeats() * secondsPerBeat * (.9 + .2 * random.nextDouble());
+            if (random.nextDouble() < .05) {
+                time += length;
+                continue;
+            }
+            double pitch = NoteUtil.getNoteFrequency(note.getName())
+                * (.98 + .04 * random.nextDouble());
+            notes.add(new TranscribedNote(0, 0, time, time + .9 * length, pitch));
+            time += length;
+            if (random.nextDouble() < .05) {
+                notes.add(new TranscribedNote(0, 0, time, time + .05, pitch * 2));
+                time += .05;
+            }
+        }
+        return notes;
+    }
+}
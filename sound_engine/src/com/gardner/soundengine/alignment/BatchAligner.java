@@ -0,0 +1,196 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Aligns a bunch of performances of the same piece (like a class's worth of submissions) against
+ * it, several at a time.  The score is compiled once and shared by all of the aligners, which
+ * only ever read it.  Results are handed back as each performance finishes, with a summary of
+ * how it went.
+ */
+public class BatchAligner {
+    // A transcribed note more than this far from the music note it's aligned with counts as a
+    // wrong note.
+    private static final double WRONG_NOTE_CENTS = 50; // PARAMTODO
+
+    private final CompiledScore score;
+    private final int threads;
+
+    /**
+     * Create a batch aligner that uses at most threads threads at once.
+     */
+    public BatchAligner(SheetMusic music, int threads) {
+        this(new CompiledScore(music), threads);
+    }
+
+    public BatchAligner(CompiledScore score, int threads) {
+        this.score = score;
+        this.threads = threads;
+    }
+
+    /**
+     * Something to tell about each performance as soon as it's done.  This is always called on
+     * the thread that called alignAll, one result at a time, in whatever order the performances
+     * finish.
+     */
+    public interface ResultHandler {
+        public void handleResult(Result result);
+    }
+
+    /**
+     * Align every performance against the score, returning the results in the same order as
+     * performances.  If handler isn't null, it also gets each result as soon as it's ready.
+     */
+    public List<Result> alignAll(List<List<TranscribedNote>> performances,
+            ResultHandler handler) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<Result> completionService =
+                new ExecutorCompletionService<Result>(executor);
+            for (int i=0; i<performances.size(); i++) {
+                completionService.submit(new AlignmentJob(i, performances.get(i)));
+            }
+            Result[] results = new Result[performances.size()];
+            for (int i=0; i<performances.size(); i++) {
+                Result result = completionService.take().get();
+                results[result.getIndex()] = result;
+                if (handler != null) {
+                    handler.handleResult(result);
+                }
+            }
+            return new ArrayList<Result>(Arrays.asList(results));
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class AlignmentJob implements Callable<Result> {
+        private final int index;
+        private final List<TranscribedNote> notes;
+
+        AlignmentJob(int index, List<TranscribedNote> notes) {
+            this.index = index;
+            this.notes = notes;
+        }
+
+        public Result call() {
+            NoteAligner aligner = new NoteAligner(score);
+            aligner.updateAlignment(notes);
+            double beatsPerMinute = -1;
+            if (aligner.hasTempo()) {
+                beatsPerMinute = aligner.getBeatsPerMinute();
+            }
+            return new Result(index, aligner.getAlignment(), beatsPerMinute, score.getTuning());
+        }
+    }
+
+    /**
+     * How one performance went.
+     */
+    public static class Result {
+        private final int index;
+        private final NoteAlignment alignment;
+        private final double beatsPerMinute;
+        private int alignedNotes;
+        private int skippedNotes;
+        private int addedNotes;
+        private int wrongNotes;
+        private double meanPitchErrorCents;
+
+        Result(int index, NoteAlignment alignment, double beatsPerMinute, Tuning tuning) {
+            this.index = index;
+            this.alignment = alignment;
+            this.beatsPerMinute = beatsPerMinute;
+            double totalCents = 0.0;
+            for (NotePair pair : alignment.getPairs()) {
+                if (pair.getTranscribedNote() == null) {
+                    skippedNotes++;
+                } else if (pair.getMusicNote() == null) {
+                    addedNotes++;
+                } else {
+                    alignedNotes++;
+                    int midiNote = pair.getMusicNote().getMidiNote();
+                    double pitch = pair.getTranscribedNote().getPitch();
+                    if (tuning.getMidiFrequency(midiNote) > 0 && pitch > 0) {
+                        double cents = Math.abs(tuning.getCents(pitch, midiNote));
+                        totalCents += cents;
+                        if (cents > WRONG_NOTE_CENTS) {
+                            wrongNotes++;
+                        }
+                    }
+                }
+            }
+            if (alignedNotes > 0) {
+                meanPitchErrorCents = totalCents / alignedNotes;
+            }
+        }
+
+        /**
+         * Which performance this is, as an index into the list given to alignAll.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public NoteAlignment getAlignment() {
+            return alignment;
+        }
+
+        /**
+         * The tempo of the whole performance, or -1 if it had too few aligned notes for the
+         * aligner to estimate one (see NoteAligner.hasTempo).
+         */
+        public double getBeatsPerMinute() {
+            return beatsPerMinute;
+        }
+
+        /**
+         * The number of music notes that were matched up with a transcribed note.
+         */
+        public int getAlignedNotes() {
+            return alignedNotes;
+        }
+
+        /**
+         * The number of music notes that the performer seems to have left out.
+         */
+        public int getSkippedNotes() {
+            return skippedNotes;
+        }
+
+        /**
+         * The number of transcribed notes that don't match up with anything in the music.
+         */
+        public int getAddedNotes() {
+            return addedNotes;
+        }
+
+        /**
+         * The number of aligned notes that were more than WRONG_NOTE_CENTS off.
+         */
+        public int getWrongNotes() {
+            return wrongNotes;
+        }
+
+        /**
+         * How far off the aligned notes were, on average, in cents.
+         */
+        public double getMeanPitchErrorCents() {
+            return meanPitchErrorCents;
+        }
+    }
+}
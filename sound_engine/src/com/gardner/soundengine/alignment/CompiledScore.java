@@ -0,0 +1,82 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.List;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * A piece of SheetMusic boiled down to arrays, for use in the inner loops of alignment, so that
+ * nothing there has to go through a MusicNote (or a Tuning) for every cell in a DP matrix.
+ */
+public class CompiledScore {
+    private final Tuning tuning;
+    private final List<MusicNote> notes;
+    private final int[] midiNotes;
+    // In Hz, or -1 if the note doesn't have a pitch the tuning can handle.
+    private final double[] pitches;
+    private final double[] beats;
+    // skipCostSums[m] is the cost of skipping music notes 0 through m-1 before the first
+    // transcribed note (see NoteAligner.noteSkipCost), which only depends on the score.
+    private final double[] skipCostSums;
+
+    public CompiledScore(SheetMusic music) {
+        this(music, NoteUtil.getDefaultTuning());
+    }
+
+    /**
+     * Compile music with the notes' pitches given by tuning.  Anything aligning against this
+     * score uses the same tuning to make sense of transcribed pitches.
+     */
+    public CompiledScore(SheetMusic music, Tuning tuning) {
+        this.tuning = tuning;
+        notes = music.getNotes();
+        midiNotes = new int[notes.size()];
+        pitches = new double[notes.size()];
+        beats = new double[notes.size()];
+        for (int i=0; i<notes.size(); i++) {
+            MusicNote note = notes.get(i);
+            midiNotes[i] = note.getMidiNote();
+            pitches[i] = tuning.getMidiFrequency(midiNotes[i]);
+            beats[i] = note.getBeats();
+        }
+        skipCostSums = new double[notes.size() + 1];
+        for (int i=0; i<notes.size(); i++) {
+            skipCostSums[i+1] = skipCostSums[i] + NoteAligner.SKIP_COST_PER_BEAT * beats[i];
+        }
+    }
+
+    public Tuning getTuning() {
+        return tuning;
+    }
+
+    public int getNumNotes() {
+        return pitches.length;
+    }
+
+    public MusicNote getNote(int i) {
+        return notes.get(i);
+    }
+
+    public List<MusicNote> getNotes() {
+        return notes;
+    }
+
+    public int getMidiNote(int i) {
+        return midiNotes[i];
+    }
+
+    public double getPitch(int i) {
+        return pitches[i];
+    }
+
+    public double getBeats(int i) {
+        return beats[i];
+    }
+
+    /**
+     * The cost of skipping music notes 0 through m-1 before the first transcribed note.
+     */
+    public double getSkipCostSum(int m) {
+        return skipCostSums[m];
+    }
+}
@@ -0,0 +1,379 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Computes the same alignment as NoteAligner's DP, with the same costs, but in memory linear in
+ * the length of the music instead of keeping the whole T x M matrix around (Hirschberg's
+ * algorithm).  This is for aligning whole, long recordings after the fact, where we only need
+ * the final alignment.
+ *
+ * It's easiest to think of NoteAligner's DP as a shortest path problem on a grid with an extra
+ * row and column on the top and left.  Moving right along the extra row skips a music note
+ * before the first transcribed note, and moving down the extra column adds a transcribed note
+ * before the first music note; that's where NoteAligner's special cases for the first row and
+ * column come from.  The path starts at the corner (-1, -1) and ends at (T-1, M-1).
+ *
+ * To find the path, we split the rows in half, compute the cost of getting from the start to
+ * each cell in the middle row (going forward) and from each cell in the row after it to the end
+ * (going backward), keeping only one row at a time.  The cheapest sum tells us where the path
+ * crosses between the two rows, and then we do the same thing on each half.  The two halves are
+ * independent, so they run in parallel when they're big enough.  Small enough pieces are solved
+ * with a plain DP.
+ *
+ * Every cell here takes the cheapest of its three moves, forward, backward and in the leaves,
+ * so the two halves of each split always agree on what a path costs, and the result is a
+ * cheapest alignment.  NoteAligner's matrix doesn't quite do that: when adding and skipping tie
+ * for cheapest it aligns anyway, even if that costs more, and that extra cost carries on into
+ * later cells.  So this finds the same alignment as the matrix or a cheaper one (getCost says
+ * how much it cost), and when there are several equally good alignments, it might not pick the
+ * same one.
+ */
+class LinearSpaceAligner {
+    // Subproblems with at most this many cells are solved directly with a full DP matrix.
+    private static final int LEAF_CELLS = 1 << 14; // PARAMTODO
+    // Subproblems with fewer cells than this aren't worth splitting across threads.
+    private static final int PARALLEL_CELLS = 1 << 16; // PARAMTODO
+
+    private static final byte MUSIC_NOTE_SKIPPED = 1;
+    private static final byte TRANSCRIBED_NOTE_ADDED = 2;
+    private static final byte NOTES_ALIGNED = 3;
+
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private final NoteAligner aligner;
+    private final List<MusicNote> musicNotes;
+    private final List<TranscribedNote> transcribedNotes;
+    private double cost;
+
+    LinearSpaceAligner(NoteAligner aligner, List<MusicNote> musicNotes,
+            List<TranscribedNote> transcribedNotes) {
+        this.aligner = aligner;
+        this.musicNotes = musicNotes;
+        this.transcribedNotes = transcribedNotes;
+    }
+
+    /**
+     * Find the best alignment, using pool for the parallel parts, or just the calling thread if
+     * pool is null.
+     */
+    NoteAlignment align(ForkJoinPool pool) {
+        Subproblem problem = new Subproblem(-1, -1, transcribedNotes.size() - 1,
+                musicNotes.size() - 1, pool != null);
+        List<NotePair> pairs;
+        if (pool == null) {
+            pairs = problem.compute();
+        } else {
+            pairs = pool.invoke(problem);
+        }
+        cost = computePathCost(pairs);
+        return new NoteAlignment(pairs, aligner.getTuning());
+    }
+
+    /**
+     * The total cost of the alignment found by the last call to align.
+     */
+    double getCost() {
+        return cost;
+    }
+
+    /**
+     * Add up the cost of the moves along the path given by pairs.
+     */
+    private double computePathCost(List<NotePair> pairs) {
+        double total = 0.0;
+        int t = -1;
+        int m = -1;
+        for (NotePair pair : pairs) {
+            if (pair.getTranscribedNote() == null) {
+                m++;
+                total += skipCost(t, m);
+            } else if (pair.getMusicNote() == null) {
+                t++;
+                total += addCost(t, m);
+            } else {
+                t++;
+                m++;
+                total += alignCost(t, m);
+            }
+        }
+        return total;
+    }
+
+    // The costs of the three ways of moving into cell (t, m), or infinity if that move isn't
+    // allowed there.
+
+    private double skipCost(int t, int m) {
+        if (m < 0 || (t >= 0 && m == 0)) {
+            return INFINITY;
+        }
+        return aligner.noteSkipCost(m, Math.max(t, 0));
+    }
+
+    private double addCost(int t, int m) {
+        if (t < 0 || (m >= 0 && t == 0)) {
+            return INFINITY;
+        }
+        return aligner.noteAddCost(t);
+    }
+
+    private double alignCost(int t, int m) {
+        if (t < 0 || m < 0) {
+            return INFINITY;
+        }
+        return aligner.noteAlignCost(t, m);
+    }
+
+    /**
+     * Picks the cheapest move, given the total cost of each one.  Ties go to aligning, then to
+     * skipping.  This has to be a true minimum to match backwardCosts; see the class comment.
+     */
+    private static byte choose(double alignCost, double skipCost, double addCost) {
+        byte move = NOTES_ALIGNED;
+        double best = alignCost;
+        if (skipCost < best) {
+            move = MUSIC_NOTE_SKIPPED;
+            best = skipCost;
+        }
+        if (addCost < best) {
+            move = TRANSCRIBED_NOTE_ADDED;
+        }
+        return move;
+    }
+
+    private NotePair makePair(int t, int m, byte move) {
+        if (move == NOTES_ALIGNED) {
+            return new NotePair(transcribedNotes.get(t), musicNotes.get(m));
+        } else if (move == TRANSCRIBED_NOTE_ADDED) {
+            return new NotePair(transcribedNotes.get(t), null);
+        }
+        return new NotePair(null, musicNotes.get(m));
+    }
+
+    /**
+     * Finds the best path from (startT, startM) to (endT, endM), returning the pairs for every
+     * cell on the path after the first one.
+     */
+    private class Subproblem extends RecursiveTask<List<NotePair>> {
+        private final int startT;
+        private final int startM;
+        private final int endT;
+        private final int endM;
+        private final boolean parallel;
+
+        Subproblem(int startT, int startM, int endT, int endM, boolean parallel) {
+            this.startT = startT;
+            this.startM = startM;
+            this.endT = endT;
+            this.endM = endM;
+            this.parallel = parallel;
+        }
+
+        private long getNumCells() {
+            return (endT - startT + 1L) * (endM - startM + 1L);
+        }
+
+        protected List<NotePair> compute() {
+            if (getNumCells() <= LEAF_CELLS || startT == endT) {
+                return solveDirectly();
+            }
+            // Careful with the rounding here, as startT can be -1.
+            int mid = startT + (endT - startT) / 2;
+            double[] forward = forwardCosts(mid);
+            double[] backward = backwardCosts(mid + 1);
+            int width = endM - startM + 1;
+
+            // Find where the path crosses from row mid to row mid+1.
+            double best = INFINITY;
+            int crossingM = 0;
+            byte crossingMove = NOTES_ALIGNED;
+            for (int i=0; i<width; i++) {
+                if (forward[i] == INFINITY) {
+                    continue;
+                }
+                int m = startM + i;
+                if (i + 1 < width) {
+                    double cost = forward[i] + alignCost(mid + 1, m + 1) + backward[i+1];
+                    if (cost < best) {
+                        best = cost;
+                        crossingM = m + 1;
+                        crossingMove = NOTES_ALIGNED;
+                    }
+                }
+                double cost = forward[i] + addCost(mid + 1, m) + backward[i];
+                if (cost < best) {
+                    best = cost;
+                    crossingM = m;
+                    crossingMove = TRANSCRIBED_NOTE_ADDED;
+                }
+            }
+            if (best == INFINITY) {
+                throw new RuntimeException("There's a bug somewhere");
+            }
+            int beforeM = crossingM;
+            if (crossingMove == NOTES_ALIGNED) {
+                beforeM--;
+            }
+            Subproblem top = new Subproblem(startT, startM, mid, beforeM, parallel);
+            Subproblem bottom = new Subproblem(mid + 1, crossingM, endT, endM, parallel);
+            List<NotePair> topPairs;
+            List<NotePair> bottomPairs;
+            if (parallel && getNumCells() >= PARALLEL_CELLS) {
+                bottom.fork();
+                topPairs = top.compute();
+                bottomPairs = bottom.join();
+            } else {
+                topPairs = top.compute();
+                bottomPairs = bottom.compute();
+            }
+            List<NotePair> pairs = new ArrayList<NotePair>(topPairs.size() + 1
+                    + bottomPairs.size());
+            pairs.addAll(topPairs);
+            pairs.add(makePair(mid + 1, crossingM, crossingMove));
+            pairs.addAll(bottomPairs);
+            return pairs;
+        }
+
+        /**
+         * The cost of getting from the start to each cell in row lastT, keeping only one row at a
+         * time.
+         */
+        private double[] forwardCosts(int lastT) {
+            int width = endM - startM + 1;
+            double[] previous = new double[width];
+            double[] current = new double[width];
+            for (int t=startT; t<=lastT; t++) {
+                for (int i=0; i<width; i++) {
+                    int m = startM + i;
+                    if (t == startT && i == 0) {
+                        current[i] = 0.0;
+                        continue;
+                    }
+                    double alignTotal = INFINITY;
+                    double skipTotal = INFINITY;
+                    double addTotal = INFINITY;
+                    if (t > startT && i > 0) {
+                        alignTotal = alignCost(t, m) + previous[i-1];
+                    }
+                    if (i > 0) {
+                        skipTotal = skipCost(t, m) + current[i-1];
+                    }
+                    if (t > startT) {
+                        addTotal = addCost(t, m) + previous[i];
+                    }
+                    byte move = choose(alignTotal, skipTotal, addTotal);
+                    if (move == NOTES_ALIGNED) {
+                        current[i] = alignTotal;
+                    } else if (move == MUSIC_NOTE_SKIPPED) {
+                        current[i] = skipTotal;
+                    } else {
+                        current[i] = addTotal;
+                    }
+                }
+                double[] temp = previous;
+                previous = current;
+                current = temp;
+            }
+            return previous;
+        }
+
+        /**
+         * The cost of getting from each cell in row firstT to the end (not counting the cost of
+         * getting into that cell).
+         */
+        private double[] backwardCosts(int firstT) {
+            int width = endM - startM + 1;
+            double[] next = new double[width];
+            double[] current = new double[width];
+            for (int t=endT; t>=firstT; t--) {
+                for (int i=width-1; i>=0; i--) {
+                    int m = startM + i;
+                    if (t == endT && i == width - 1) {
+                        current[i] = 0.0;
+                        continue;
+                    }
+                    double best = INFINITY;
+                    if (i + 1 < width) {
+                        best = Math.min(best, skipCost(t, m + 1) + current[i+1]);
+                    }
+                    if (t < endT) {
+                        best = Math.min(best, addCost(t + 1, m) + next[i]);
+                        if (i + 1 < width) {
+                            best = Math.min(best, alignCost(t + 1, m + 1) + next[i+1]);
+                        }
+                    }
+                    current[i] = best;
+                }
+                double[] temp = next;
+                next = current;
+                current = temp;
+            }
+            return next;
+        }
+
+        /**
+         * A plain DP over the whole subproblem, with a traceback.
+         */
+        private List<NotePair> solveDirectly() {
+            int height = endT - startT + 1;
+            int width = endM - startM + 1;
+            double[][] costs = new double[height][width];
+            byte[][] moves = new byte[height][width];
+            for (int j=0; j<height; j++) {
+                int t = startT + j;
+                for (int i=0; i<width; i++) {
+                    int m = startM + i;
+                    if (j == 0 && i == 0) {
+                        costs[j][i] = 0.0;
+                        continue;
+                    }
+                    double alignTotal = INFINITY;
+                    double skipTotal = INFINITY;
+                    double addTotal = INFINITY;
+                    if (j > 0 && i > 0) {
+                        alignTotal = alignCost(t, m) + costs[j-1][i-1];
+                    }
+                    if (i > 0) {
+                        skipTotal = skipCost(t, m) + costs[j][i-1];
+                    }
+                    if (j > 0) {
+                        addTotal = addCost(t, m) + costs[j-1][i];
+                    }
+                    byte move = choose(alignTotal, skipTotal, addTotal);
+                    moves[j][i] = move;
+                    if (move == NOTES_ALIGNED) {
+                        costs[j][i] = alignTotal;
+                    } else if (move == MUSIC_NOTE_SKIPPED) {
+                        costs[j][i] = skipTotal;
+                    } else {
+                        costs[j][i] = addTotal;
+                    }
+                }
+            }
+            List<NotePair> pairs = new ArrayList<NotePair>();
+            int j = height - 1;
+            int i = width - 1;
+            while (j > 0 || i > 0) {
+                byte move = moves[j][i];
+                pairs.add(makePair(startT + j, startM + i, move));
+                if (move == NOTES_ALIGNED) {
+                    j--;
+                    i--;
+                } else if (move == TRANSCRIBED_NOTE_ADDED) {
+                    j--;
+                } else {
+                    i--;
+                }
+            }
+            // We built the list backwards.
+            Collections.reverse(pairs);
+            return pairs;
+        }
+    }
+}
@@ -1,39 +1,249 @@
 package com.gardner.soundengine.alignment;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.gardner.soundengine.common.*;
 
+/**
+ * Aligns transcribed notes against a piece of sheet music, with dynamic programming.  There's a
+ * row in the DP matrices for each transcribed note, and a column for each note in the music.
+ *
+ * This is incremental: when new notes come in, we only compute the new rows (and redo the row
+ * for what used to be the last note, as its cost depends on when the next note started).  The
+ * costs also depend on the tempo, though, which we re-estimate every update; we only throw away
+ * the rows we have and start over when the estimate has moved by more than TEMPO_TOLERANCE, so
+ * following along with a performance is O(M) per note most of the time, instead of O(T*M).
+ *
+ * For long pieces, setBandWidth limits each row to a band of columns around where the
+ * performance seems to be (Sakoe-Chiba style), and we only store the cells in the band, so time
+ * and memory grow linearly with the length of the piece instead of quadratically.  The band for
+ * each row is centered just after the cheapest cell in the row before it, which is our best guess
+ * at how far into the music the performer had gotten.  Cells outside the band are treated as
+ * infinitely expensive.
+ *
+ * For aligning whole recordings after the fact, setLinearSpace switches to LinearSpaceAligner,
+ * which doesn't keep the matrices at all, and so needs only O(M) memory.
+ *
+ * If setPool has been called, big batches of rows (like aligning a whole recording at once) are
+ * computed in parallel: the matrix is cut into tiles, and the tiles along each anti-diagonal
+ * only depend on tiles from earlier anti-diagonals, so they can all be done at once.  Every cell
+ * is computed exactly as it would be serially, so the results are identical.
+ */
 public class NoteAligner {
+    // How far (as a fraction) the tempo estimate has to move before we recompute the whole
+    // alignment with it.
+    private static final double TEMPO_TOLERANCE = .02; // PARAMTODO
+    // The size of the tiles for computing the matrix in parallel, and the fewest cells it's worth
+    // bothering for.
+    private static final int TILE_ROWS = 64; // PARAMTODO
+    private static final int TILE_COLUMNS = 256; // PARAMTODO
+    private static final int PARALLEL_CELLS = 1 << 16; // PARAMTODO
+    // How many of the most recent tempo estimates go into the local tempo.
+    private static final int LOCAL_TEMPO_NOTES = 8; // PARAMTODO
+    // What it costs to skip a beat's worth of music note that we should have played already.
+    static final double SKIP_COST_PER_BEAT = 5; // PARAMTODO
+
     private List<MusicNote> musicNotes;
+    private CompiledScore score;
     private List<TranscribedNote> transcribedNotes;
+    // The parts of the transcribed notes that the costs need, in arrays, like CompiledScore.
+    private double[] noteStartTimes;
+    private double[] noteEndTimes;
+    private double[] notePitches;
     private int lastTranscribedNote;
+    // Rows are allocated as transcribed notes come in; only the first computedRows are current.
+    // Row t only holds the columns from bandStart[t] to bandEnd[t], inclusive.
     private byte[][] alignment;
     private double[][] costMatrix;
+    private int[] bandStart;
+    private int[] bandEnd;
+    // How many columns on either side of the band's center to keep, or 0 to keep all of them.
+    private int bandWidth;
+    // If linearSpace is set, we don't keep any DP rows, and instead run LinearSpaceAligner on
+    // everything whenever the alignment is needed (and remember the result until it changes).
+    private boolean linearSpace;
+    // Used for computing alignments in parallel, if it isn't null.
+    private ForkJoinPool pool;
+    private NoteAlignment linearSpaceAlignment;
+    private double linearSpaceCost;
+    // addCostSums[t] is the cost of adding all of transcribed notes 0 through t-1.
+    private double[] addCostSums;
+    private int computedRows;
+
+    // The best path back through the matrix, from its first cell to its last, and the tempo
+    // estimate from each cell on it (NaN if it doesn't give one).  For each row that the path
+    // goes through, rowPathStart is the first column it visits there, and rowPathIndex is where
+    // that cell is in the path.  Rows before pathStableRows haven't changed since we last traced
+    // the path.
+    private int[] pathT;
+    private int[] pathM;
+    private byte[] pathSteps;
+    private double[] pathEstimates;
+    private int pathLength;
+    private int[] rowPathStart;
+    private int[] rowPathIndex;
+    private int pathFirstRow;
+    private int pathStableRows;
+    // Scratch space for tracing back new parts of the path.
+    private int[] traceT;
+    private int[] traceM;
+    private byte[] traceSteps;
 
+    // All of the tempo estimates from the path, so we can get their median.
+    private RunningMedian tempoEstimates;
+    // The latest tempo estimates (overall and local), and the one the rows we have were computed
+    // with.  The last is the same as one of the first two unless the estimate has only moved a
+    // little since we last recomputed everything.
     private double secondsPerBeat;
+    private double localSecondsPerBeat;
+    private double alignmentSecondsPerBeat;
+    private boolean useLocalTempo;
 
     private byte MUSIC_NOTE_SKIPPED = 1;
     private byte TRANSCRIBED_NOTE_ADDED = 2;
     private byte NOTES_ALIGNED = 3;
 
     public NoteAligner(SheetMusic music) {
-        musicNotes = music.getNotes();
+        this(new CompiledScore(music));
+    }
+
+    public NoteAligner(SheetMusic music, Tuning tuning) {
+        this(new CompiledScore(music, tuning));
+    }
+
+    /**
+     * Create an aligner for an already compiled score.  The score is only ever read, so several
+     * aligners (even on different threads) can share one.
+     */
+    public NoteAligner(CompiledScore score) {
+        this.score = score;
+        musicNotes = score.getNotes();
         transcribedNotes = new ArrayList<TranscribedNote>();
+        noteStartTimes = new double[16];
+        noteEndTimes = new double[16];
+        notePitches = new double[16];
         lastTranscribedNote = 0;
+        alignment = new byte[16][];
+        costMatrix = new double[16][];
+        bandStart = new int[16];
+        bandEnd = new int[16];
+        bandWidth = 0;
+        linearSpace = false;
+        pool = null;
+        linearSpaceAlignment = null;
+        addCostSums = new double[16];
+        computedRows = 0;
+        pathT = new int[16];
+        pathM = new int[16];
+        pathSteps = new byte[16];
+        pathEstimates = new double[16];
+        pathLength = 0;
+        rowPathStart = new int[16];
+        rowPathIndex = new int[16];
+        pathFirstRow = 0;
+        pathStableRows = 0;
+        traceT = new int[16];
+        traceM = new int[16];
+        traceSteps = new byte[16];
+        tempoEstimates = new RunningMedian();
         secondsPerBeat = -1;
+        localSecondsPerBeat = -1;
+        alignmentSecondsPerBeat = -1;
+        useLocalTempo = false;
     }
 
+    /**
+     * Add any notes in the list that we haven't seen yet (notes should be the same list every
+     * time, with new notes only ever added to the end), and update the alignment and the tempo
+     * estimate.
+     */
     public void updateAlignment(List<TranscribedNote> notes) {
-        // Right now we just redo the whole alignment every time update is called - not a big deal
-        // for short files.  But this is written so that it can be easily made incremental.
+        if (lastTranscribedNote < notes.size()) {
+            linearSpaceAlignment = null;
+        }
         for (; lastTranscribedNote<notes.size(); lastTranscribedNote++) {
-            transcribedNotes.add(notes.get(lastTranscribedNote));
+            addTranscribedNote(notes.get(lastTranscribedNote));
         }
         computeAlignment();
         estimateTempo();
+        double newSecondsPerBeat = secondsPerBeat;
+        if (useLocalTempo && localSecondsPerBeat != -1) {
+            newSecondsPerBeat = localSecondsPerBeat;
+        }
+        if (tempoChanged(newSecondsPerBeat)) {
+            // The next call to computeAlignment will redo everything with the new tempo.
+            alignmentSecondsPerBeat = newSecondsPerBeat;
+            computedRows = 0;
+            linearSpaceAlignment = null;
+        }
+    }
+
+    /**
+     * Only consider alignments that stay within width music notes of where we think the
+     * performer is.  Smaller bands are faster and use less memory, but if the performance strays
+     * outside the band (by skipping a long passage, say), the alignment won't be able to follow
+     * it.  A width of 0 (the default) turns the band off.
+     */
+    public void setBandWidth(int width) {
+        if (width < 0) {
+            throw new IllegalArgumentException("Band width can't be negative: " + width);
+        }
+        bandWidth = width;
+        computedRows = 0;
+    }
+
+    /**
+     * Compute alignments in linear space (see LinearSpaceAligner), instead of keeping the DP
+     * matrices.  This is meant for aligning a whole recording at once; every update redoes the
+     * entire alignment, so it's a bad choice for following along live.  The band width is
+     * ignored in this mode.
+     */
+    public void setLinearSpace(boolean linearSpace) {
+        this.linearSpace = linearSpace;
+        linearSpaceAlignment = null;
+        computedRows = 0;
+        if (linearSpace) {
+            // Let go of the matrices; they'll be grown again if we switch back.
+            alignment = new byte[16][];
+            costMatrix = new double[16][];
+        }
+    }
+
+    /**
+     * Split up big alignments over the threads in pool (or don't, if pool is null, which is the
+     * default).  This works with the full matrices and in linear space mode, but not with a band,
+     * as each row's band depends on the row before it.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private void addTranscribedNote(TranscribedNote note) {
+        int t = transcribedNotes.size();
+        if (t == noteStartTimes.length) {
+            noteStartTimes = Arrays.copyOf(noteStartTimes, t * 2);
+            noteEndTimes = Arrays.copyOf(noteEndTimes, t * 2);
+            notePitches = Arrays.copyOf(notePitches, t * 2);
+        }
+        noteStartTimes[t] = note.getStartTime();
+        noteEndTimes[t] = note.getEndTime();
+        notePitches[t] = note.getPitch();
+        transcribedNotes.add(note);
+    }
+
+    private boolean tempoChanged(double newSecondsPerBeat) {
+        if (newSecondsPerBeat == alignmentSecondsPerBeat) {
+            return false;
+        }
+        if (alignmentSecondsPerBeat == -1) {
+            return true;
+        }
+        double change = Math.abs(newSecondsPerBeat - alignmentSecondsPerBeat);
+        return change / alignmentSecondsPerBeat > TEMPO_TOLERANCE;
     }
 
     /**
@@ -41,246 +251,558 @@ public class NoteAligner {
      * updateAlignment is called first.
      */
     public NoteAlignment getAlignment() {
-        if (alignment == null) {
-            computeAlignment();
-            estimateTempo();
+        if (linearSpace) {
+            if (linearSpaceAlignment == null) {
+                LinearSpaceAligner linearSpaceAligner =
+                    new LinearSpaceAligner(this, musicNotes, transcribedNotes);
+                linearSpaceAlignment = linearSpaceAligner.align(pool);
+                linearSpaceCost = linearSpaceAligner.getCost();
+            }
+            return linearSpaceAlignment;
         }
         computeAlignment();
         //printMatrices();
-        int m = musicNotes.size() - 1;
-        int t = transcribedNotes.size() - 1;
+        updatePath();
         List<NotePair> pairs = new ArrayList<NotePair>();
-        while (m >= 0 && t >= 0) {
-            // Note that we're always adding at 0 here, because we're building the array backwards.
-            if (alignment[t][m] == NOTES_ALIGNED) {
-                pairs.add(0, new NotePair(transcribedNotes.get(t), musicNotes.get(m)));
-                m--;
-                t--;
-            } else if (alignment[t][m] == TRANSCRIBED_NOTE_ADDED) {
-                pairs.add(0, new NotePair(transcribedNotes.get(t), null));
+        // Before the path starts, we're on one of the edges, and we add skipped or added notes
+        // from the top left corner until we get to it.
+        int t = transcribedNotes.size() - 1;
+        int m = musicNotes.size() - 1;
+        if (pathLength > 0) {
+            t = pathT[0];
+            m = pathM[0];
+            if (pathSteps[0] != MUSIC_NOTE_SKIPPED) {
                 t--;
-            } else if (alignment[t][m] == MUSIC_NOTE_SKIPPED) {
-                pairs.add(0, new NotePair(null, musicNotes.get(m)));
+            }
+            if (pathSteps[0] != TRANSCRIBED_NOTE_ADDED) {
                 m--;
-            } else {
-                throw new RuntimeException("There's a bug somewhere");
             }
         }
-        // Once we get to one of the edges, we add skipped or added notes until we get to the top
-        // left corner.
-        while (m >= 0) {
-            pairs.add(0, new NotePair(null, musicNotes.get(m)));
-            m--;
+        for (int i=0; i<=t; i++) {
+            pairs.add(new NotePair(transcribedNotes.get(i), null));
         }
-        while (t >= 0) {
-            pairs.add(0, new NotePair(transcribedNotes.get(t), null));
-            t--;
+        for (int i=0; i<=m; i++) {
+            pairs.add(new NotePair(null, musicNotes.get(i)));
+        }
+        for (int i=0; i<pathLength; i++) {
+            if (pathSteps[i] == NOTES_ALIGNED) {
+                pairs.add(new NotePair(transcribedNotes.get(pathT[i]), musicNotes.get(pathM[i])));
+            } else if (pathSteps[i] == TRANSCRIBED_NOTE_ADDED) {
+                pairs.add(new NotePair(transcribedNotes.get(pathT[i]), null));
+            } else {
+                pairs.add(new NotePair(null, musicNotes.get(pathM[i])));
+            }
         }
-        return new NoteAlignment(pairs);
+        // If the last column isn't in the last row's band, the rest of the music hasn't been
+        // played yet; the path stops at the end of the band.
+        if (pathLength > 0) {
+            for (int i=pathM[pathLength-1]+1; i<musicNotes.size(); i++) {
+                pairs.add(new NotePair(null, musicNotes.get(i)));
+            }
+        }
+        return new NoteAlignment(pairs, score.getTuning());
     }
 
+    Tuning getTuning() {
+        return score.getTuning();
+    }
+
+    /**
+     * Whether we have any tempo estimate yet.  We don't until at least three transcribed notes
+     * have been aligned to music notes, and until then getBeatsPerMinute is meaningless (it comes
+     * out negative).
+     */
+    public boolean hasTempo() {
+        return secondsPerBeat != -1;
+    }
+
+    /**
+     * The tempo, estimated from the whole performance so far.  Check hasTempo first.
+     */
     public double getBeatsPerMinute() {
         return 60.0 / secondsPerBeat;
     }
 
-    private void estimateTempo() {
-        NoteAlignment alignment = getAlignment();
-        List<NotePair> pairs = alignment.getPairs();
-        List<Double> tempoEstimates = new ArrayList<Double>();
-        int pair_index = 0;
-        double beats = -1;
-        double startTime = -1;
-        while (pair_index < pairs.size()) {
-            NotePair pair = pairs.get(pair_index);
-            pair_index++;
-            if (pair.getMusicNote() == null) {
-                startTime = -1;
-                continue;
+    /**
+     * The tempo, estimated from just the last few notes, which follows rubato and tempo changes
+     * much more closely than getBeatsPerMinute.
+     */
+    public double getLocalBeatsPerMinute() {
+        return 60.0 / localSecondsPerBeat;
+    }
+
+    /**
+     * Use the local tempo instead of the overall tempo when computing costs.  Note that, as with
+     * the overall tempo, the whole alignment is redone whenever the local tempo changes by more
+     * than TEMPO_TOLERANCE, which will happen a lot more often.
+     */
+    public void setUseLocalTempo(boolean useLocalTempo) {
+        this.useLocalTempo = useLocalTempo;
+    }
+
+    /**
+     * Brings the path (the traceback through the matrix) up to date, along with the tempo
+     * estimates from it.  We trace back from the end until we run into the path we had before,
+     * in a row that hasn't changed since; from there on back, the old path is still right.  So
+     * when following along live, this only looks at the last few cells each time.
+     */
+    private void updatePath() {
+        int numRows = transcribedNotes.size();
+        int t = numRows - 1;
+        int m = musicNotes.size() - 1;
+        if (t >= 0) {
+            m = Math.min(m, bandEnd[t]);
+        }
+        int oldLastRow = -1;
+        if (pathLength > 0) {
+            oldLastRow = pathT[pathLength-1];
+        }
+        int keep = 0;
+        int numNewCells = 0;
+        while (t >= 0 && m >= 0) {
+            if (t < pathStableRows && t >= pathFirstRow && t <= oldLastRow) {
+                int rowEnd = t == oldLastRow ? pathLength : rowPathIndex[t+1];
+                int index = rowPathIndex[t] + m - rowPathStart[t];
+                if (m >= rowPathStart[t] && index < rowEnd) {
+                    keep = index + 1;
+                    break;
+                }
             }
-            if (pair.getTranscribedNote() == null) {
-                startTime = -1;
-                continue;
+            byte step = alignment[t][m - bandStart[t]];
+            if (numNewCells == traceT.length) {
+                traceT = Arrays.copyOf(traceT, numNewCells * 2);
+                traceM = Arrays.copyOf(traceM, numNewCells * 2);
+                traceSteps = Arrays.copyOf(traceSteps, numNewCells * 2);
             }
-            if (startTime != -1) {
-                double endTime = pair.getTranscribedNote().getStartTime();
-                double tempoEstimate = (endTime - startTime) / beats;
-                tempoEstimates.add(tempoEstimate);
+            traceT[numNewCells] = t;
+            traceM[numNewCells] = m;
+            traceSteps[numNewCells] = step;
+            numNewCells++;
+            if (step == NOTES_ALIGNED) {
+                m--;
+                t--;
+            } else if (step == TRANSCRIBED_NOTE_ADDED) {
+                t--;
+            } else if (step == MUSIC_NOTE_SKIPPED) {
+                m--;
+            } else {
+                throw new RuntimeException("There's a bug somewhere");
+            }
+        }
+
+        for (int i=keep; i<pathLength; i++) {
+            if (!Double.isNaN(pathEstimates[i])) {
+                tempoEstimates.remove(pathEstimates[i]);
+            }
+        }
+        int newLength = keep + numNewCells;
+        if (newLength > pathT.length) {
+            int capacity = Math.max(newLength, pathT.length * 2);
+            pathT = Arrays.copyOf(pathT, capacity);
+            pathM = Arrays.copyOf(pathM, capacity);
+            pathSteps = Arrays.copyOf(pathSteps, capacity);
+            pathEstimates = Arrays.copyOf(pathEstimates, capacity);
+        }
+        if (keep == 0 && numNewCells > 0) {
+            pathFirstRow = traceT[numNewCells-1];
+        }
+        // The new cells were traced backwards, so they go onto the path in reverse.
+        for (int j=numNewCells-1, i=keep; j>=0; j--, i++) {
+            pathT[i] = traceT[j];
+            pathM[i] = traceM[j];
+            pathSteps[i] = traceSteps[j];
+            if (i == 0 || pathT[i-1] != pathT[i]) {
+                rowPathStart[pathT[i]] = pathM[i];
+                rowPathIndex[pathT[i]] = i;
+            }
+            // Each pair of aligned notes right after another pair of aligned notes tells us how
+            // long the first music note took to play.
+            pathEstimates[i] = Double.NaN;
+            if (i > 0 && pathSteps[i] == NOTES_ALIGNED && pathSteps[i-1] == NOTES_ALIGNED) {
+                double startTime = noteStartTimes[pathT[i-1]];
+                double endTime = noteStartTimes[pathT[i]];
+                pathEstimates[i] = (endTime - startTime) / score.getBeats(pathM[i-1]);
+                tempoEstimates.add(pathEstimates[i]);
+            }
+        }
+        pathLength = newLength;
+        pathStableRows = computedRows;
+    }
+
+    private void estimateTempo() {
+        double[] recentEstimates = new double[LOCAL_TEMPO_NOTES];
+        int numRecent = 0;
+        if (linearSpace) {
+            // There's no path to keep up to date in this mode, so we just start over.
+            tempoEstimates.clear();
+            List<NotePair> pairs = getAlignment().getPairs();
+            double beats = -1;
+            double startTime = -1;
+            for (NotePair pair : pairs) {
+                if (pair.getMusicNote() == null || pair.getTranscribedNote() == null) {
+                    startTime = -1;
+                    continue;
+                }
+                if (startTime != -1) {
+                    double endTime = pair.getTranscribedNote().getStartTime();
+                    double tempoEstimate = (endTime - startTime) / beats;
+                    tempoEstimates.add(tempoEstimate);
+                    recentEstimates[numRecent % LOCAL_TEMPO_NOTES] = tempoEstimate;
+                    numRecent++;
+                }
+                beats = pair.getMusicNote().getBeats();
+                startTime = pair.getTranscribedNote().getStartTime();
+            }
+            numRecent = Math.min(numRecent, LOCAL_TEMPO_NOTES);
+        } else {
+            updatePath();
+            for (int i=pathLength-1; i>=0 && numRecent<LOCAL_TEMPO_NOTES; i--) {
+                if (!Double.isNaN(pathEstimates[i])) {
+                    recentEstimates[numRecent++] = pathEstimates[i];
+                }
             }
-            beats = pair.getMusicNote().getBeats();
-            startTime = pair.getTranscribedNote().getStartTime();
         }
         if (tempoEstimates.size() < 3) {
             // If we haven't seen 3 good notes yet, don't try to estimate the tempo
             return;
         }
-        Collections.sort(tempoEstimates);
         // Take the median tempo as our estimate
-        secondsPerBeat = tempoEstimates.get(tempoEstimates.size()/2);
+        secondsPerBeat = tempoEstimates.getMedian();
+        if (numRecent >= 3) {
+            Arrays.sort(recentEstimates, 0, numRecent);
+            localSecondsPerBeat = recentEstimates[numRecent/2];
+        }
     }
 
-    private double noteSkipCost(int m_index, int t_index) {
+    double noteSkipCost(int m_index, int t_index) {
         // Guiding principle here: the shorter the note's duration, the more likely it is for a
         // person to miss it, so the less it costs to skip.
         // Also, we need t_index because we are computing partial alignments; we want notes that
         // are later in the piece to cost less to skip than notes that we should have already
         // played.
-        double multiplier = 5;
+        double multiplier = SKIP_COST_PER_BEAT;
         if (m_index > t_index && t_index != 0) {
             multiplier = 1;
         }
-        return multiplier * musicNotes.get(m_index).getBeats();
+        return multiplier * score.getBeats(m_index);
     }
 
-    private double noteAddCost(int t_index) {
+    double noteAddCost(int t_index) {
         // Guiding principle: as above, the shorter the note's duration, the more likely it is to
         // be accidental.  Also, because of some deficencies in my transcription code, very short
         // notes get spuriously added, and so they should have a low cost (and some special case in
         // the UI to just ignore them).
-        double denom = secondsPerBeat;
+        double denom = alignmentSecondsPerBeat;
         if (denom == -1) {
             // Just use 80 beats per minute if we don't have an estimate of the tempo yet
             denom = 60.0/80;
         }
-        return 5 * transcribedNotes.get(t_index).getDuration() / denom;
+        double duration = noteEndTimes[t_index] - noteStartTimes[t_index];
+        return 5 * duration / denom;
     }
 
-    private double noteAlignCost(int t_index, int m_index) {
+    double noteAlignCost(int t_index, int m_index) {
         // Guiding principle: length of note is more important than pitch, but not by a lot.  If
         // the notes are off by an octave, maybe the transcription just got the octave wrong.
-        MusicNote m = musicNotes.get(m_index);
-        TranscribedNote t = transcribedNotes.get(t_index);
         double cost = 0.0;
+        double secondsPerBeat = alignmentSecondsPerBeat;
         if (secondsPerBeat != -1) {
-            double musicBeats = m.getBeats();
-            double startTime = t.getStartTime();
+            double musicBeats = score.getBeats(m_index);
+            double startTime = noteStartTimes[t_index];
             double endTime;
             if (t_index < transcribedNotes.size() - 1) {
-                endTime = transcribedNotes.get(t_index+1).getStartTime();
+                endTime = noteStartTimes[t_index+1];
             } else {
-                endTime = t.getEndTime();
+                endTime = noteEndTimes[t_index];
             }
             double transcribedBeats = (endTime - startTime) / secondsPerBeat;
             double percentOff = Math.abs(musicBeats - transcribedBeats) / musicBeats;
             cost += percentOff;
         }
-        double musicPitch = NoteUtil.getNoteFrequency(m.getName());
-        double transcribedPitch = t.getPitch();
+        double musicPitch = score.getPitch(m_index);
+        double transcribedPitch = notePitches[t_index];
         double percentOff = Math.abs(musicPitch - transcribedPitch) / musicPitch;
         cost += 4*percentOff;
         cost += Math.abs(t_index - m_index) / 5;
         return cost;
     }
 
+    /**
+     * Brings the DP matrices up to date with the transcribed notes we have.  Rows we already have
+     * are left alone, except for the last one, whose align costs change once the note after it
+     * shows up.
+     */
     private void computeAlignment() {
-        alignment = new byte[transcribedNotes.size()][musicNotes.size()];
-        costMatrix = new double[transcribedNotes.size()][musicNotes.size()];
-        for (int t=0; t<transcribedNotes.size(); t++) {
-            for (int m=0; m<musicNotes.size(); m++) {
-                //System.out.println();
-                if (t == 0) {
-                    // If we're on the first row, there are two possibilites: either we skipped all
-                    // prior notes, or we played one prior note and skipped the rest.  We need to
-                    // check both possibilities and keep the best one.
-                    double alignCost = 0.0;
-                    for (int i=0; i<m; i++) {
-                        alignCost += noteSkipCost(i, t);
-                    }
-                    alignCost += noteAlignCost(t, m);
-                    if (m == 0) {
-                        // If this is the top left corner, the only choice is to align the notes
-                        costMatrix[t][m] = alignCost;
-                        alignment[t][m] = NOTES_ALIGNED;
-                        continue;
-                    }
-                    double skipCost = noteSkipCost(m, t) + costMatrix[t][m-1];
-                    /*
-                    System.out.println("t: " + t + "; m: " + m);
-                    TranscribedNote tn = transcribedNotes.get(t);
-                    MusicNote mn = musicNotes.get(m);
-                    System.out.println("t: " + NoteUtil.findClosestNote(tn.getPitch()) + " for " +
-                            tn.getDuration());
-                    System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
-                    System.out.println("skipCost: " + noteSkipCost(m, t) + " + " +
-                            costMatrix[t][m-1] + " = " + skipCost);
-                    System.out.println("alignCost: " + alignCost + "(" + noteAlignCost(t, m) + ")");
-                    */
-                    if (skipCost < alignCost) {
-                        costMatrix[t][m] = skipCost;
-                        alignment[t][m] = MUSIC_NOTE_SKIPPED;
-                    } else {
-                        costMatrix[t][m] = alignCost;
-                        alignment[t][m] = NOTES_ALIGNED;
-                    }
-                } else if (m == 0) {
-                    // If we're on the first column, we have a similar situation to the above,
-                    // except we're adding transcribed notes instead of skipping music notes.
-                    // And we don't need to check for t == 0, because that case is already covered
-                    // above.
-                    double alignCost = 0.0;
-                    for (int i=0; i<t; i++) {
-                        alignCost += noteAddCost(i);
-                    }
-                    alignCost += noteAlignCost(t, m);
-                    double addCost = noteAddCost(t) + costMatrix[t-1][m];
-                    /*
-                    System.out.println("t: " + t + "; m: " + m);
-                    TranscribedNote tn = transcribedNotes.get(t);
-                    MusicNote mn = musicNotes.get(m);
-                    System.out.println("t: " + NoteUtil.findClosestNote(tn.getPitch()) + " for " +
-                            tn.getDuration());
-                    System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
-                    System.out.println("addCost: " + noteAddCost(t) + " + " + costMatrix[t-1][m]
-                            + " = " + addCost);
-                    System.out.println("alignCost: " + alignCost + "(" + noteAlignCost(t, m) + ")");
-                    */
-                    if (addCost < alignCost) {
-                        costMatrix[t][m] = addCost;
-                        alignment[t][m] = TRANSCRIBED_NOTE_ADDED;
-                    } else {
-                        costMatrix[t][m] = alignCost;
-                        alignment[t][m] = NOTES_ALIGNED;
-                    }
+        int numRows = transcribedNotes.size();
+        if (linearSpace || computedRows == numRows) {
+            return;
+        }
+        if (numRows > alignment.length) {
+            int newLength = Math.max(numRows, alignment.length * 2);
+            alignment = Arrays.copyOf(alignment, newLength);
+            costMatrix = Arrays.copyOf(costMatrix, newLength);
+            bandStart = Arrays.copyOf(bandStart, newLength);
+            bandEnd = Arrays.copyOf(bandEnd, newLength);
+            addCostSums = Arrays.copyOf(addCostSums, newLength);
+            rowPathStart = Arrays.copyOf(rowPathStart, newLength);
+            rowPathIndex = Arrays.copyOf(rowPathIndex, newLength);
+        }
+        int firstRow = Math.max(computedRows - 1, 0);
+        pathStableRows = Math.min(pathStableRows, firstRow);
+        long numCells = (long) (numRows - firstRow) * musicNotes.size();
+        if (pool != null && bandWidth == 0 && numCells >= PARALLEL_CELLS) {
+            for (int t=firstRow; t<numRows; t++) {
+                setUpRow(t);
+            }
+            pool.invoke(new WavefrontTask(firstRow, numRows));
+        } else {
+            for (int t=firstRow; t<numRows; t++) {
+                setUpRow(t);
+                computeCells(t, bandStart[t], bandEnd[t]);
+            }
+        }
+        computedRows = numRows;
+    }
+
+    /**
+     * The cost of the best alignment we've found (that is, the last cell of the matrix, or the
+     * cost of LinearSpaceAligner's path in linear space mode), for checking that different ways
+     * of computing the alignment agree.
+     */
+    double getAlignmentCost() {
+        if (linearSpace) {
+            getAlignment();
+            return linearSpaceCost;
+        }
+        computeAlignment();
+        int t = transcribedNotes.size() - 1;
+        if (t < 0) {
+            return 0.0;
+        }
+        return cost(t, musicNotes.size() - 1);
+    }
+
+    /**
+     * Figures out the band for row t, makes sure there's room for it, and does the row's running
+     * sums; everything but the cells themselves.
+     */
+    private void setUpRow(int t) {
+        int lo = 0;
+        int hi = musicNotes.size() - 1;
+        if (bandWidth > 0) {
+            int center = 0;
+            if (t > 0) {
+                center = Math.min(cheapestColumn(t-1) + 1, hi);
+                // Keeping the band from moving backwards makes sure every cell in it can be
+                // reached from the row before.
+                lo = bandStart[t-1];
+            }
+            lo = Math.max(lo, center - bandWidth);
+            hi = Math.min(hi, center + bandWidth);
+        }
+        bandStart[t] = lo;
+        bandEnd[t] = hi;
+        if (alignment[t] == null || alignment[t].length != hi - lo + 1) {
+            alignment[t] = new byte[hi - lo + 1];
+            costMatrix[t] = new double[hi - lo + 1];
+        }
+        if (t == 0) {
+            addCostSums[t] = 0.0;
+        } else {
+            addCostSums[t] = addCostSums[t-1] + noteAddCost(t-1);
+        }
+    }
+
+    /**
+     * Computes the cells in row t from column from to column to, inclusive.  The cells to the
+     * left of and above these need to have been computed already.
+     */
+    private void computeCells(int t, int from, int to) {
+        int lo = bandStart[t];
+        byte[] steps = alignment[t];
+        double[] costs = costMatrix[t];
+        for (int m=from; m<=to; m++) {
+            if (t == 0) {
+                // If we're on the first row, there are two possibilites: either we skipped all
+                // prior notes, or we played one prior note and skipped the rest.  We need to
+                // check both possibilities and keep the best one.
+                double alignCost = score.getSkipCostSum(m);
+                alignCost += noteAlignCost(t, m);
+                if (m == 0) {
+                    // If this is the top left corner, the only choice is to align the notes
+                    costs[m-lo] = alignCost;
+                    steps[m-lo] = NOTES_ALIGNED;
+                    continue;
+                }
+                double skipCost = noteSkipCost(m, t) + cost(t, m-1);
+                /*
+                System.out.println("t: " + t + "; m: " + m);
+                TranscribedNote tn = transcribedNotes.get(t);
+                MusicNote mn = musicNotes.get(m);
+                System.out.println("t: " + score.getTuning().findClosestNote(tn.getPitch())
+                        + " for " + tn.getDuration());
+                System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
+                System.out.println("skipCost: " + noteSkipCost(m, t) + " + " +
+                        cost(t, m-1) + " = " + skipCost);
+                System.out.println("alignCost: " + alignCost + "(" + noteAlignCost(t, m) + ")");
+                */
+                if (skipCost < alignCost) {
+                    costs[m-lo] = skipCost;
+                    steps[m-lo] = MUSIC_NOTE_SKIPPED;
+                } else {
+                    costs[m-lo] = alignCost;
+                    steps[m-lo] = NOTES_ALIGNED;
+                }
+            } else if (m == 0) {
+                // If we're on the first column, we have a similar situation to the above,
+                // except we're adding transcribed notes instead of skipping music notes.
+                // And we don't need to check for t == 0, because that case is already covered
+                // above.
+                double alignCost = addCostSums[t];
+                alignCost += noteAlignCost(t, m);
+                double addCost = noteAddCost(t) + cost(t-1, m);
+                /*
+                System.out.println("t: " + t + "; m: " + m);
+                TranscribedNote tn = transcribedNotes.get(t);
+                MusicNote mn = musicNotes.get(m);
+                System.out.println("t: " + score.getTuning().findClosestNote(tn.getPitch())
+                        + " for " + tn.getDuration());
+                System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
+                System.out.println("addCost: " + noteAddCost(t) + " + " + cost(t-1, m)
+                        + " = " + addCost);
+                System.out.println("alignCost: " + alignCost + "(" + noteAlignCost(t, m) + ")");
+                */
+                if (addCost < alignCost) {
+                    costs[m-lo] = addCost;
+                    steps[m-lo] = TRANSCRIBED_NOTE_ADDED;
                 } else {
-                    // We've now handled the edge cases, so we're in the middle of the matrix and
-                    // there are three possibilities.  Either the two notes align, the music note
-                    // was skipped, or the transcribed note was added.
-                    double alignCost = noteAlignCost(t, m) + costMatrix[t-1][m-1];
-                    double skipCost = noteSkipCost(m, t) + costMatrix[t][m-1];
-                    double addCost = noteAddCost(t) + costMatrix[t-1][m];
-                    /*
-                    System.out.println("t: " + t + "; m: " + m);
-                    TranscribedNote tn = transcribedNotes.get(t);
-                    MusicNote mn = musicNotes.get(m);
-                    System.out.println("t: " + NoteUtil.findClosestNote(tn.getPitch()) + " for " +
-                            tn.getDuration());
-                    System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
-                    System.out.println("addCost: " + noteAddCost(t) + " + " + costMatrix[t-1][m]
-                            + " = " + addCost);
-                    System.out.println("skipCost: " + noteSkipCost(m, t) + " + " +
-                            costMatrix[t][m-1] + " = " + skipCost);
-                    System.out.println("alignCost: " + noteAlignCost(t, m) + " + " +
-                            costMatrix[t-1][m-1] + " = " + alignCost);
-                    */
-                    if (addCost < skipCost && addCost < alignCost) {
-                        costMatrix[t][m] = addCost;
-                        alignment[t][m] = TRANSCRIBED_NOTE_ADDED;
-                    } else if (skipCost < addCost && skipCost < alignCost) {
-                        costMatrix[t][m] = skipCost;
-                        alignment[t][m] = MUSIC_NOTE_SKIPPED;
-                    } else {
-                        costMatrix[t][m] = alignCost;
-                        alignment[t][m] = NOTES_ALIGNED;
-                    }
+                    costs[m-lo] = alignCost;
+                    steps[m-lo] = NOTES_ALIGNED;
+                }
+            } else {
+                // We've now handled the edge cases, so we're in the middle of the matrix and
+                // there are three possibilities.  Either the two notes align, the music note
+                // was skipped, or the transcribed note was added.
+                double alignCost = noteAlignCost(t, m) + cost(t-1, m-1);
+                double skipCost = noteSkipCost(m, t) + cost(t, m-1);
+                double addCost = noteAddCost(t) + cost(t-1, m);
+                /*
+                System.out.println("t: " + t + "; m: " + m);
+                TranscribedNote tn = transcribedNotes.get(t);
+                MusicNote mn = musicNotes.get(m);
+                System.out.println("t: " + score.getTuning().findClosestNote(tn.getPitch())
+                        + " for " + tn.getDuration());
+                System.out.println("m: " + mn.getName() + " for " + mn.getBeats());
+                System.out.println("addCost: " + noteAddCost(t) + " + " + cost(t-1, m)
+                        + " = " + addCost);
+                System.out.println("skipCost: " + noteSkipCost(m, t) + " + " +
+                        cost(t, m-1) + " = " + skipCost);
+                System.out.println("alignCost: " + noteAlignCost(t, m) + " + " +
+                        cost(t-1, m-1) + " = " + alignCost);
+                */
+                if (addCost < skipCost && addCost < alignCost) {
+                    costs[m-lo] = addCost;
+                    steps[m-lo] = TRANSCRIBED_NOTE_ADDED;
+                } else if (skipCost < addCost && skipCost < alignCost) {
+                    costs[m-lo] = skipCost;
+                    steps[m-lo] = MUSIC_NOTE_SKIPPED;
+                } else if (alignCost == Double.POSITIVE_INFINITY) {
+                    // Only possible at the edge of a band, when the other two are tied.
+                    costs[m-lo] = skipCost;
+                    steps[m-lo] = MUSIC_NOTE_SKIPPED;
+                } else {
+                    costs[m-lo] = alignCost;
+                    steps[m-lo] = NOTES_ALIGNED;
+                }
+            }
+        }
+    }
+
+    /**
+     * The cost of the best alignment ending at (t, m), or infinity if that cell is outside of
+     * row t's band.
+     */
+    private double cost(int t, int m) {
+        if (m < bandStart[t] || m > bandEnd[t]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return costMatrix[t][m - bandStart[t]];
+    }
+
+    /**
+     * Computes rows firstRow through lastRow - 1 in parallel, a tile at a time, one anti-diagonal
+     * of tiles after another.
+     */
+    private class WavefrontTask extends RecursiveAction {
+        private final int firstRow;
+        private final int lastRow;
+
+        WavefrontTask(int firstRow, int lastRow) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            int numTileRows = (lastRow - firstRow + TILE_ROWS - 1) / TILE_ROWS;
+            int numTileColumns = (musicNotes.size() + TILE_COLUMNS - 1) / TILE_COLUMNS;
+            for (int diagonal=0; diagonal<numTileRows+numTileColumns-1; diagonal++) {
+                List<TileTask> tiles = new ArrayList<TileTask>();
+                int firstTileRow = Math.max(0, diagonal - numTileColumns + 1);
+                int lastTileRow = Math.min(diagonal, numTileRows - 1);
+                for (int i=firstTileRow; i<=lastTileRow; i++) {
+                    int j = diagonal - i;
+                    int tileFirstRow = firstRow + i * TILE_ROWS;
+                    int tileLastRow = Math.min(tileFirstRow + TILE_ROWS, lastRow);
+                    int firstColumn = j * TILE_COLUMNS;
+                    int lastColumn = Math.min(firstColumn + TILE_COLUMNS, musicNotes.size()) - 1;
+                    tiles.add(new TileTask(tileFirstRow, tileLastRow, firstColumn, lastColumn));
                 }
+                invokeAll(tiles);
+            }
+        }
+    }
+
+    private class TileTask extends RecursiveAction {
+        private final int firstRow;
+        private final int lastRow;
+        private final int firstColumn;
+        private final int lastColumn;
+
+        TileTask(int firstRow, int lastRow, int firstColumn, int lastColumn) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.firstColumn = firstColumn;
+            this.lastColumn = lastColumn;
+        }
+
+        protected void compute() {
+            for (int t=firstRow; t<lastRow; t++) {
+                computeCells(t, firstColumn, lastColumn);
+            }
+        }
+    }
+
+    private int cheapestColumn(int t) {
+        double[] costs = costMatrix[t];
+        int best = 0;
+        for (int i=1; i<=bandEnd[t]-bandStart[t]; i++) {
+            if (costs[i] < costs[best]) {
+                best = i;
             }
         }
+        return bandStart[t] + best;
     }
 
     public void printMatrices() {
+        if (linearSpace) {
+            System.out.println("No matrices to print in linear space mode");
+            return;
+        }
+        computeAlignment();
         System.out.println("Cost matrix: ");
         for (int t=0; t<transcribedNotes.size(); t++) {
             for (int m=0; m<musicNotes.size(); m++) {
-                System.out.print(String.format("%2.1f", costMatrix[t][m]));
+                System.out.print(String.format("%2.1f", cost(t, m)));
                 System.out.print(" ");
             }
             System.out.println();
@@ -288,7 +810,11 @@ public class NoteAligner {
         System.out.println("Alignment matrix: ");
         for (int t=0; t<transcribedNotes.size(); t++) {
             for (int m=0; m<musicNotes.size(); m++) {
-                System.out.print(alignment[t][m]);
+                if (m < bandStart[t] || m > bandEnd[t]) {
+                    System.out.print(0);
+                } else {
+                    System.out.print(alignment[t][m - bandStart[t]]);
+                }
                 System.out.print(" ");
             }
             System.out.println();
@@ -9,9 +9,16 @@ import com.gardner.soundengine.common.*;
  */
 public class NoteAlignment {
     private final List<NotePair> pairs;
+    // Used to name the transcribed notes.
+    private final Tuning tuning;
 
     public NoteAlignment(List<NotePair> pairs) {
+        this(pairs, NoteUtil.getDefaultTuning());
+    }
+
+    public NoteAlignment(List<NotePair> pairs, Tuning tuning) {
         this.pairs = pairs;
+        this.tuning = tuning;
     }
 
     public List<NotePair> getPairs() {
@@ -36,7 +43,7 @@ public class NoteAlignment {
             }
             String t = "    ";
             if (pair.getTranscribedNote() != null) {
-                t = NoteUtil.findClosestNote(pair.getTranscribedNote().getPitch());
+                t = tuning.findClosestNote(pair.getTranscribedNote().getPitch());
             }
             System.out.println(m + " ---- " + t);
         }
@@ -46,7 +53,7 @@ public class NoteAlignment {
                 builder.append("    ");
             } else {
                 builder.append(String.format("%4s",
-                            NoteUtil.findClosestNote(pair.getTranscribedNote().getPitch())));
+                            tuning.findClosestNote(pair.getTranscribedNote().getPitch())));
             }
         }
         return builder.toString();
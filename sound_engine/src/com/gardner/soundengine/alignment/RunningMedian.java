@@ -0,0 +1,103 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.TreeMap;
+
+/**
+ * The median of a collection of numbers that values get added to and removed from, without
+ * sorting everything each time it's asked for.  The values are split into a lower half and an
+ * upper half, each kept sorted (as counts in a TreeMap, as there are often repeats), so adding,
+ * removing and getting the median are all O(log n).
+ *
+ * The median here is the value at index size/2 of the sorted values (so the upper of the two
+ * middle values when there's an even number), which is what NoteAligner has always used.
+ */
+class RunningMedian {
+    private final TreeMap<Double, Integer> lower;
+    private final TreeMap<Double, Integer> upper;
+    private int lowerSize;
+    private int upperSize;
+
+    RunningMedian() {
+        lower = new TreeMap<Double, Integer>();
+        upper = new TreeMap<Double, Integer>();
+        lowerSize = 0;
+        upperSize = 0;
+    }
+
+    int size() {
+        return lowerSize + upperSize;
+    }
+
+    void add(double value) {
+        if (upperSize > 0 && value < upper.firstKey()) {
+            increment(lower, value);
+            lowerSize++;
+        } else {
+            increment(upper, value);
+            upperSize++;
+        }
+        rebalance();
+    }
+
+    /**
+     * Remove one copy of value, which must have been added before.
+     */
+    void remove(double value) {
+        if (upper.containsKey(value)) {
+            decrement(upper, value);
+            upperSize--;
+        } else if (lower.containsKey(value)) {
+            decrement(lower, value);
+            lowerSize--;
+        } else {
+            throw new RuntimeException("Removed a value that was never added: " + value);
+        }
+        rebalance();
+    }
+
+    double getMedian() {
+        if (upperSize == 0) {
+            throw new RuntimeException("No values to take the median of");
+        }
+        return upper.firstKey();
+    }
+
+    void clear() {
+        lower.clear();
+        upper.clear();
+        lowerSize = 0;
+        upperSize = 0;
+    }
+
+    private void rebalance() {
+        int target = size() / 2;
+        while (lowerSize > target) {
+            double value = lower.lastKey();
+            decrement(lower, value);
+            lowerSize--;
+            increment(upper, value);
+            upperSize++;
+        }
+        while (lowerSize < target) {
+            double value = upper.firstKey();
+            decrement(upper, value);
+            upperSize--;
+            increment(lower, value);
+            lowerSize++;
+        }
+    }
+
+    private static void increment(TreeMap<Double, Integer> counts, double value) {
+        Integer count = counts.get(value);
+        counts.put(value, count == null ? 1 : count + 1);
+    }
+
+    private static void decrement(TreeMap<Double, Integer> counts, double value) {
+        int count = counts.get(value);
+        if (count == 1) {
+            counts.remove(value);
+        } else {
+            counts.put(value, count - 1);
+        }
+    }
+}
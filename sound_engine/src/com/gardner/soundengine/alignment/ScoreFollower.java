@@ -0,0 +1,165 @@
+package com.gardner.soundengine.alignment;
+
+import java.util.List;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Follows a performance through a piece of music as it's played, one transcribed note at a time,
+ * for things like turning pages or cueing an accompaniment.  Unlike NoteAligner, this never
+ * revisits old notes, and the work per note doesn't depend on how far into the piece we are.
+ *
+ * This is a forward-only hidden Markov model over positions in the music.  After each note, the
+ * performer has most likely moved on to the next note in the music, but they might have skipped
+ * a few, or the transcription might have split one note into two (so they stay where they are).
+ * How well the transcribed pitch matches each note in the music then tells us which of those
+ * happened.  We only keep probabilities for a window of WINDOW_SIZE positions around the most
+ * likely one, so if the performer jumps far away (say, back to the beginning of a repeated
+ * section), the follower won't find them again.
+ */
+public class ScoreFollower {
+    // How many positions in the music we keep track of at once.
+    private static final int WINDOW_SIZE = 64; // PARAMTODO
+    // The furthest the performer can get through the music in one note.
+    private static final int MAX_JUMP = 6; // PARAMTODO
+    // The chance of staying on the same note (a note split in two, or a spurious extra note),
+    // and of moving to the next one.  The rest is split between skipping ahead 2 to MAX_JUMP
+    // notes, halving each time.
+    private static final double STAY_PROBABILITY = .1; // PARAMTODO
+    private static final double NEXT_PROBABILITY = .75; // PARAMTODO
+    // How far off a correctly played note can be, in semitones.
+    private static final double PITCH_SIGMA = .5; // PARAMTODO
+    // The transcription sometimes gets the octave wrong, so those aren't ruled out entirely.
+    private static final double OCTAVE_ERROR_WEIGHT = .2; // PARAMTODO
+    // A little bit of likelihood for every position, so one garbled note can't derail us.
+    private static final double LIKELIHOOD_FLOOR = .01; // PARAMTODO
+
+    private final CompiledScore score;
+    // The pitch of each music note, in semitones relative to A4, or NaN if it doesn't have one.
+    private final double[] scoreSemitones;
+    private final double[] transitions;
+
+    // Position 0 is before the first note; position p is music note p-1.  window[i] is the
+    // probability that we're at position windowStart + i.
+    private final double[] window;
+    private final double[] scratch;
+    private int windowStart;
+    private int lastTranscribedNote;
+    private ScorePosition position;
+
+    public ScoreFollower(SheetMusic music) {
+        this(new CompiledScore(music));
+    }
+
+    public ScoreFollower(CompiledScore score) {
+        this.score = score;
+        scoreSemitones = new double[score.getNumNotes()];
+        for (int i=0; i<score.getNumNotes(); i++) {
+            scoreSemitones[i] = Double.NaN;
+            if (score.getPitch(i) > 0) {
+                scoreSemitones[i] = score.getMidiNote(i) - NoteUtil.A4_MIDI_NOTE;
+            }
+        }
+        transitions = new double[MAX_JUMP + 1];
+        transitions[0] = STAY_PROBABILITY;
+        transitions[1] = NEXT_PROBABILITY;
+        double skipWeight = 0.0;
+        for (int k=2; k<=MAX_JUMP; k++) {
+            transitions[k] = Math.pow(.5, k - 2);
+            skipWeight += transitions[k];
+        }
+        double skipProbability = 1 - STAY_PROBABILITY - NEXT_PROBABILITY;
+        for (int k=2; k<=MAX_JUMP; k++) {
+            transitions[k] *= skipProbability / skipWeight;
+        }
+        window = new double[WINDOW_SIZE];
+        scratch = new double[WINDOW_SIZE + MAX_JUMP];
+        windowStart = 0;
+        window[0] = 1.0;
+        lastTranscribedNote = 0;
+        position = new ScorePosition(-1, null, 1.0);
+    }
+
+    /**
+     * Follow along with any notes in the list that we haven't seen yet (as with NoteAligner,
+     * notes should be the same list every time, only ever added to at the end), and return where
+     * we think the performer is now.
+     */
+    public ScorePosition update(List<TranscribedNote> notes) {
+        for (; lastTranscribedNote<notes.size(); lastTranscribedNote++) {
+            addNote(notes.get(lastTranscribedNote));
+        }
+        return position;
+    }
+
+    /**
+     * Move forward by one transcribed note, returning where we think the performer is now.
+     */
+    public ScorePosition addNote(TranscribedNote note) {
+        double semitones = Double.NaN;
+        if (note.getPitch() > 0) {
+            semitones = score.getTuning().frequencyToMidi(note.getPitch())
+                - NoteUtil.A4_MIDI_NOTE;
+        }
+        int numPositions = score.getNumNotes() + 1;
+        int span = Math.min(scratch.length, numPositions - windowStart);
+        double total = 0.0;
+        int best = 0;
+        for (int i=0; i<span; i++) {
+            double prior = 0.0;
+            for (int k=Math.max(0, i - WINDOW_SIZE + 1); k<=MAX_JUMP && k<=i; k++) {
+                prior += transitions[k] * window[i-k];
+            }
+            scratch[i] = prior * likelihood(windowStart + i, semitones);
+            total += scratch[i];
+            if (scratch[i] > scratch[best]) {
+                best = i;
+            }
+        }
+        int bestPosition = windowStart + best;
+        double confidence = scratch[best] / total;
+
+        // Recenter the window, leaving some room behind the best position in case it turns out
+        // we jumped ahead too soon.
+        int newStart = Math.max(0, bestPosition - WINDOW_SIZE / 4);
+        double kept = 0.0;
+        for (int j=0; j<WINDOW_SIZE; j++) {
+            int i = newStart + j - windowStart;
+            if (i >= 0 && i < span) {
+                window[j] = scratch[i];
+            } else {
+                window[j] = 0.0;
+            }
+            kept += window[j];
+        }
+        for (int j=0; j<WINDOW_SIZE; j++) {
+            window[j] /= kept;
+        }
+        windowStart = newStart;
+
+        int noteIndex = bestPosition - 1;
+        MusicNote musicNote = null;
+        if (noteIndex >= 0) {
+            musicNote = score.getNote(noteIndex);
+        }
+        position = new ScorePosition(noteIndex, musicNote, confidence);
+        return position;
+    }
+
+    public ScorePosition getPosition() {
+        return position;
+    }
+
+    private double likelihood(int position, double semitones) {
+        if (position == 0 || Double.isNaN(semitones) || Double.isNaN(scoreSemitones[position-1])) {
+            return LIKELIHOOD_FLOOR;
+        }
+        double diff = semitones - scoreSemitones[position-1];
+        return gaussian(diff) + OCTAVE_ERROR_WEIGHT * (gaussian(diff - 12) + gaussian(diff + 12))
+            + LIKELIHOOD_FLOOR;
+    }
+
+    private static double gaussian(double diff) {
+        return Math.exp(-diff * diff / (2 * PITCH_SIGMA * PITCH_SIGMA));
+    }
+}
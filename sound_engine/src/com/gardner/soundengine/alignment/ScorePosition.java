@@ -0,0 +1,37 @@
+package com.gardner.soundengine.alignment;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Where a ScoreFollower thinks the performer is in the music: the index of the note they most
+ * likely just played, and how sure the follower is about that, as a probability.
+ */
+public class ScorePosition {
+    private final int noteIndex;
+    private final MusicNote musicNote;
+    private final double confidence;
+
+    public ScorePosition(int noteIndex, MusicNote musicNote, double confidence) {
+        this.noteIndex = noteIndex;
+        this.musicNote = musicNote;
+        this.confidence = confidence;
+    }
+
+    /**
+     * The index of the current note in the music, or -1 if the performer hasn't started yet.
+     */
+    public int getNoteIndex() {
+        return noteIndex;
+    }
+
+    /**
+     * The current note, or null if the performer hasn't started yet.
+     */
+    public MusicNote getMusicNote() {
+        return musicNote;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+}
@@ -4,9 +4,9 @@ package com.gardner.soundengine.common;
  * Represents a music note as found in sheet music, or MusicXML.
  */
 public class MusicNote {
-    // Takes values like C4, B5, etc.
+    // The MIDI note number (60 is C4), or -1 if we couldn't make sense of the note's name.
     // TODO: figure out the best way to handle rests
-    private final String name;
+    private final int midiNote;
     // A value of 1 here means 1 beat (typically a quarter note), .5 means half a beat (typically
     // an eighth note), and so on.
     private final double beats;
@@ -17,13 +17,27 @@ public class MusicNote {
     // "mezzo piano", etc.
     //private final String volume;
 
+    /**
+     * Make a note from a name like C4 or F#5.
+     */
     public MusicNote(String name, double beats) {
-        this.name = name;
+        this(NoteUtil.parseNoteName(name), beats);
+    }
+
+    public MusicNote(int midiNote, double beats) {
+        this.midiNote = midiNote;
         this.beats = beats;
     }
 
+    public int getMidiNote() {
+        return midiNote;
+    }
+
+    /**
+     * The note's name, for showing to people (e.g., C4, or A#5), or null if it doesn't have one.
+     */
     public String getName() {
-        return name;
+        return NoteUtil.getNoteName(midiNote);
     }
 
     public double getBeats() {
@@ -1,39 +1,54 @@
 package com.gardner.soundengine.common;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * Conversions between frequencies, note names and MIDI note numbers.  Inside the engine, notes are
+ * MIDI numbers (60 is C4, 69 is A4, one step per semitone), and names only get involved when
+ * reading or showing something to a person.
+ *
+ * The name conversions are fixed.  The frequency conversions here all go through a default Tuning;
+ * anything that might run alongside something tuned differently should be given its own Tuning
+ * and use that instead.
+ */
 public class NoteUtil {
 
-    private static Map<String, Double> noteFrequencyMap;
-    private static String[] noteNames;
-    private static double[] noteFrequencies;
+    public static final int A4_MIDI_NOTE = 69;
+
     private static String[] oneOctaveNames = new String[] {
         "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B",
     };
-    private static double basePitch = 440;
+    // Where each of C, D, E, F, G, A and B falls in oneOctaveNames.
+    private static final int[] LETTER_PITCH_CLASSES = new int[] {0, 2, 4, 5, 7, 9, 11};
+    private static final String[] midiNoteNames = new String[128];
+    static {
+        for (int i=0; i<midiNoteNames.length; i++) {
+            midiNoteNames[i] = oneOctaveNames[i % 12] + (i / 12 - 1);
+        }
+    }
+    // Tunings never change, so swapping in a new one is all it takes to change the base pitch;
+    // anyone who already has the old one just keeps using it.
+    private static volatile Tuning defaultTuning = Tuning.CONCERT_PITCH;
 
     /**
      * Reset the base pitch for A4 to be freq.  Note that this is set initially to be 440,
      * the standard concert pitch in the US and UK.
+     *
+     * This only changes the default tuning, which is picked up by things created after this is
+     * called; to have engines with different base pitches, give each its own Tuning.
      */
     public static void setBasePitch(double freq) {
-        basePitch = freq;
-        initializeNoteFrequencies(freq);
+        defaultTuning = new Tuning(freq);
+    }
+
+    public static Tuning getDefaultTuning() {
+        return defaultTuning;
     }
 
     public static double getMinFrequency() {
-        if (noteFrequencyMap == null) {
-            initializeNoteFrequencies(basePitch);
-        }
-        return noteFrequencies[0];
+        return defaultTuning.getMinFrequency();
     }
 
     public static double getMaxFrequency() {
-        if (noteFrequencyMap == null) {
-            initializeNoteFrequencies(basePitch);
-        }
-        return noteFrequencies[noteFrequencies.length-1];
+        return defaultTuning.getMaxFrequency();
     }
 
     /**
@@ -41,14 +56,23 @@ public class NoteUtil {
      * octave appended - e.g., A#3), or -1 if the note is not recognized or out of range.
      */
     public static double getNoteFrequency(String note) {
-        if (noteFrequencyMap == null) {
-            initializeNoteFrequencies(basePitch);
-        }
-        Double freq = noteFrequencyMap.get(note);
-        if (freq == null) {
-            return -1;
-        }
-        return freq;
+        return defaultTuning.getNoteFrequency(note);
+    }
+
+    public static double getMidiFrequency(int midiNote) {
+        return defaultTuning.getMidiFrequency(midiNote);
+    }
+
+    public static double frequencyToMidi(double frequency) {
+        return defaultTuning.frequencyToMidi(frequency);
+    }
+
+    public static double getCents(double frequency, int midiNote) {
+        return defaultTuning.getCents(frequency, midiNote);
+    }
+
+    public static int findClosestMidiNote(double frequency) {
+        return defaultTuning.findClosestMidiNote(frequency);
     }
 
     /**
@@ -56,65 +80,53 @@ public class NoteUtil {
      * is outside of the range we can handle.
      */
     public static String findClosestNote(double frequency) {
-        if (noteFrequencyMap == null) {
-            initializeNoteFrequencies(basePitch);
-        }
-        // Some bound checking first
-        if (frequency > noteFrequencies[noteFrequencies.length-1] ||
-                frequency < noteFrequencies[0]) {
+        return defaultTuning.findClosestNote(frequency);
+    }
+
+    /**
+     * The name of the note with the given MIDI number (e.g., 70 is A#4), or null if it isn't a
+     * valid MIDI number.  The names are all made ahead of time, so this doesn't allocate anything.
+     */
+    public static String getNoteName(int midiNote) {
+        if (midiNote < 0 || midiNote >= midiNoteNames.length) {
             return null;
         }
-        int min = 0;
-        int max = noteFrequencies.length;
-        int i = (max + min) / 2;
-        while (true) {
-            if (frequency > noteFrequencies[i]) {
-                if (frequency - noteFrequencies[i] < noteFrequencies[i+1] - frequency) {
-                    return noteNames[i];
-                } else {
-                    min = i;
-                    i = (max + min) / 2;
-                }
-            } else if (frequency < noteFrequencies[i]) {
-                if (noteFrequencies[i] - frequency < frequency - noteFrequencies[i-1]) {
-                    return noteNames[i];
-                } else {
-                    max = i;
-                    i = (max + min) / 2;
-                }
-            } else {
-                return noteNames[i];
-            }
-        }
+        return midiNoteNames[midiNote];
     }
 
-    private static void initializeNoteFrequencies(double basePitch) {
-        noteFrequencyMap = new HashMap<String, Double>();
-        // Start A0 - really unlikely I'll need lower than that
-        int octave = 0;
-        // A7 is about as high as we are likely to need
-        int maxOctave = 8;
-        // The -9 here is because we're starting with A, not C
-        noteFrequencies = new double[maxOctave * oneOctaveNames.length - 9];
-        noteNames = new String[maxOctave * oneOctaveNames.length - 9];
-        // This is 2^(1/12)
-        double multiplier = 1.0594630943592953;
-        double currentPitch = basePitch;
-        // Take the base pitch (A4), and divide by 16 to get A0
-        currentPitch /= 16;
-        int currentNote = 9;
-        int i = 0;
-        while (octave < 8) {
-            noteFrequencies[i] = currentPitch;
-            noteNames[i] = oneOctaveNames[currentNote] + octave;
-            noteFrequencyMap.put(noteNames[i], currentPitch);
-            currentPitch *= multiplier;
-            i++;
-            currentNote++;
-            if (currentNote == oneOctaveNames.length) {
-                octave++;
-                currentNote = 0;
+    /**
+     * Turn a note name like C4, F#5 or Bb3 into a MIDI number, or -1 if we can't make sense of it.
+     * Only the first letter needs to be uppercase.
+     */
+    public static int parseNoteName(String name) {
+        if (name == null || name.length() < 2) {
+            return -1;
+        }
+        int letter = "CDEFGAB".indexOf(name.charAt(0));
+        if (letter == -1) {
+            return -1;
+        }
+        int pitchClass = LETTER_PITCH_CLASSES[letter];
+        int i = 1;
+        for (; i<name.length(); i++) {
+            if (name.charAt(i) == '#') {
+                pitchClass++;
+            } else if (name.charAt(i) == 'b') {
+                pitchClass--;
+            } else {
+                break;
             }
         }
+        int octave;
+        try {
+            octave = Integer.parseInt(name.substring(i));
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+        int midiNote = (octave + 1) * 12 + pitchClass;
+        if (midiNote < 0 || midiNote >= midiNoteNames.length) {
+            return -1;
+        }
+        return midiNote;
     }
 }
@@ -0,0 +1,164 @@
+package com.gardner.soundengine.common;
+
+/**
+ * The frequencies of all of the notes we handle, for some reference pitch for A4 (and,
+ * optionally, some temperament other than equal temperament).  Everything is computed when the
+ * Tuning is made and never changes after that, so one Tuning can be shared by any number of
+ * engines and aligners on any number of threads, and an orchestra tuned to A=442 can be
+ * transcribed right alongside one tuned to A=440.
+ *
+ * Notes are MIDI numbers, as everywhere else; see NoteUtil for going to and from names.
+ */
+public final class Tuning {
+    // The tuning everything uses unless told otherwise: A4 = 440 Hz, equal temperament.
+    public static final Tuning CONCERT_PITCH = new Tuning(440);
+
+    // Our lowest note, A0.  We go up to B7, which is about as high as we are likely to need.
+    private static final int MIN_MIDI_NOTE = 21;
+    private static final int NUM_NOTES = 8 * 12 - 9;
+    private static final double LOG_2 = Math.log(2);
+
+    private final double referencePitch;
+    // Cents away from equal temperament for each of C, C#, ..., B, or null for equal temperament.
+    private final double[] temperament;
+    // frequencies[i] is the frequency of MIDI note MIN_MIDI_NOTE + i.
+    private final double[] frequencies;
+
+    /**
+     * An equal tempered tuning with A4 at referencePitch Hz.
+     */
+    public Tuning(double referencePitch) {
+        this(referencePitch, null);
+    }
+
+    /**
+     * A tuning with A4 at referencePitch Hz, and each of the twelve notes in the octave (starting
+     * at C) temperament[i] cents away from where equal temperament would put it.  Only the
+     * differences from A's offset matter, as A4 always stays at the reference pitch.  A null
+     * temperament means equal temperament.
+     */
+    public Tuning(double referencePitch, double[] temperament) {
+        if (referencePitch <= 0) {
+            throw new IllegalArgumentException("Reference pitch must be positive: "
+                    + referencePitch);
+        }
+        if (temperament != null && temperament.length != 12) {
+            throw new IllegalArgumentException("A temperament needs 12 offsets, not "
+                    + temperament.length);
+        }
+        this.referencePitch = referencePitch;
+        this.temperament = temperament == null ? null : temperament.clone();
+        frequencies = new double[NUM_NOTES];
+        // This is 2^(1/12)
+        double multiplier = 1.0594630943592953;
+        // Take the base pitch (A4), and divide by 16 to get A0
+        double currentPitch = referencePitch / 16;
+        for (int i=0; i<NUM_NOTES; i++) {
+            frequencies[i] = currentPitch;
+            currentPitch *= multiplier;
+        }
+        if (temperament != null) {
+            for (int i=0; i<NUM_NOTES; i++) {
+                int pitchClass = (MIN_MIDI_NOTE + i) % 12;
+                double cents = temperament[pitchClass] - temperament[9];
+                frequencies[i] *= Math.pow(2, cents / 1200);
+            }
+        }
+    }
+
+    /**
+     * The frequency of A4, in Hz.
+     */
+    public double getReferencePitch() {
+        return referencePitch;
+    }
+
+    public boolean isEqualTemperament() {
+        return temperament == null;
+    }
+
+    public double getMinFrequency() {
+        return frequencies[0];
+    }
+
+    public double getMaxFrequency() {
+        return frequencies[NUM_NOTES-1];
+    }
+
+    /**
+     * Get the frequency of the note with the given MIDI number, or -1 if it's out of range.  This
+     * is just an array lookup, so it's fine to call in inner loops.
+     */
+    public double getMidiFrequency(int midiNote) {
+        int i = midiNote - MIN_MIDI_NOTE;
+        if (i < 0 || i >= NUM_NOTES) {
+            return -1;
+        }
+        return frequencies[i];
+    }
+
+    /**
+     * Get the frequency of the given note (e.g., A#3), or -1 if the note is not recognized or out
+     * of range.
+     */
+    public double getNoteFrequency(String note) {
+        return getMidiFrequency(NoteUtil.parseNoteName(note));
+    }
+
+    /**
+     * Where the given frequency falls on the (equal tempered) MIDI scale, as a fractional note
+     * number (so 69.5 is a quarter tone above A4).
+     */
+    public double frequencyToMidi(double frequency) {
+        return NoteUtil.A4_MIDI_NOTE + 12 * Math.log(frequency / referencePitch) / LOG_2;
+    }
+
+    /**
+     * How far the given frequency is from the note with the given MIDI number, in cents (positive
+     * if it's sharp).
+     */
+    public double getCents(double frequency, int midiNote) {
+        if (temperament == null) {
+            return 100 * (frequencyToMidi(frequency) - midiNote);
+        }
+        double noteFrequency = getMidiFrequency(midiNote);
+        if (noteFrequency < 0) {
+            return 100 * (frequencyToMidi(frequency) - midiNote);
+        }
+        return 1200 * Math.log(frequency / noteFrequency) / LOG_2;
+    }
+
+    /**
+     * Find the MIDI number of the note that is closest to the given frequency, returning -1 if the
+     * frequency is outside of the range we can handle.  "Closest" is in cents, not in Hz, so this
+     * is a log and a round instead of a search.
+     */
+    public int findClosestMidiNote(double frequency) {
+        if (frequency > getMaxFrequency() || frequency < getMinFrequency()) {
+            return -1;
+        }
+        int midiNote = (int) Math.round(frequencyToMidi(frequency));
+        midiNote = Math.max(MIN_MIDI_NOTE, Math.min(MIN_MIDI_NOTE + NUM_NOTES - 1, midiNote));
+        if (temperament != null) {
+            // Temperaments only move notes by a fraction of a semitone, so the closest note is
+            // this one or one of its neighbors.
+            int best = midiNote;
+            for (int candidate=midiNote-1; candidate<=midiNote+1; candidate++) {
+                if (getMidiFrequency(candidate) > 0 && Math.abs(getCents(frequency, candidate))
+                        < Math.abs(getCents(frequency, best))) {
+                    best = candidate;
+                }
+            }
+            midiNote = best;
+        }
+        return midiNote;
+    }
+
+    /**
+     * Find the named note that is closest to the given frequency, returning null if the frequency
+     * is outside of the range we can handle.
+     */
+    public String findClosestNote(double frequency) {
+        return NoteUtil.getNoteName(findClosestMidiNote(frequency));
+    }
+}
@@ -0,0 +1,298 @@
+package com.gardner.soundengine.desktop.batch;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.gardner.soundengine.alignment.*;
+import com.gardner.soundengine.common.*;
+import com.gardner.soundengine.desktop.microphone.*;
+import com.gardner.soundengine.transcription.*;
+
+/**
+ * Transcribes every .wav file under some directories without any UI, on a pool of worker
+ * threads, and writes a report with one line (or JSON object) per file.  If a file has a matching
+ * score (following the same convention as SoundEngineFilePanel: audio/foo.wav goes with
+ * transcription/foo.txt), the transcription is also aligned against it.
+ *
+ * Usage: BatchTranscriber [--threads n] [--format csv|json] [--output file] [dir or file ...]
+ *
+ * With no directories given, this processes data/flute/audio and data/violin/audio.
+ *
+ * A file that can't be transcribed (a corrupt .wav, say) doesn't stop the batch; it gets a line
+ * in the report with what went wrong in the error column, and everything else carries on.
+ */
+public class BatchTranscriber {
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String format = "csv";
+        String output = null;
+        List<File> inputs = new ArrayList<File>();
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--format")) {
+                format = args[++i];
+            } else if (args[i].equals("--output")) {
+                output = args[++i];
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        if (inputs.isEmpty()) {
+            inputs.add(new File("data/flute/audio"));
+            inputs.add(new File("data/violin/audio"));
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (File input : inputs) {
+            findAudioFiles(input, files);
+        }
+
+        PrintStream out = System.out;
+        if (output != null) {
+            try {
+                out = new PrintStream(new File(output));
+            } catch(FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        List<FileResult> results = run(files, threads);
+        if (format.equals("csv")) {
+            writeCsv(results, out);
+        } else {
+            writeJson(results, out);
+        }
+        out.flush();
+        if (out != System.out) {
+            out.close();
+        }
+    }
+
+    /**
+     * Transcribe (and align, where possible) all of the given files on a pool of threads,
+     * returning the results in the same order as files.  Files that fail have their error set.
+     */
+    public static List<FileResult> run(List<File> files, int threads) {
+        // Lots of files usually go with the same score, so each score is only read and compiled
+        // once, and then shared by all of the jobs that need it.
+        ConcurrentMap<String, CompiledScore> scores =
+            new ConcurrentHashMap<String, CompiledScore>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<FileResult>> futures = new ArrayList<Future<FileResult>>();
+            for (File file : files) {
+                futures.add(executor.submit(new TranscriptionJob(file, scores)));
+            }
+            List<FileResult> results = new ArrayList<FileResult>();
+            for (Future<FileResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void findAudioFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (File child : children) {
+                findAudioFiles(child, files);
+            }
+        } else if (file.getName().endsWith(".wav")) {
+            files.add(file);
+        }
+    }
+
+    private static File findScoreFile(File audioFile) {
+        String base = audioFile.getName().substring(0, audioFile.getName().length()-4);
+        File parent = audioFile.getAbsoluteFile().getParentFile().getParentFile();
+        File scoreFile = new File(parent, "transcription/" + base + ".txt");
+        if (scoreFile.exists()) {
+            return scoreFile;
+        }
+        return null;
+    }
+
+    private static CompiledScore getScore(File scoreFile,
+            ConcurrentMap<String, CompiledScore> scores) {
+        String key = scoreFile.getAbsolutePath();
+        CompiledScore score = scores.get(key);
+        if (score == null) {
+            // If two jobs race here they'll both compile the score, but they end up sharing
+            // whichever one got in first.
+            CompiledScore compiled = new CompiledScore(SheetMusic.readFromFile(scoreFile));
+            score = scores.putIfAbsent(key, compiled);
+            if (score == null) {
+                score = compiled;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * What we found out about one file.  The alignment fields are -1 if there was no score to
+     * align against.
+     */
+    public static class FileResult {
+        public String path;
+        public double audioSeconds;
+        public double wallSeconds;
+        public int numFfts;
+        public double silentPercentage;
+        public int numNotes;
+        public int scoreNotes = -1;
+        public int alignedNotes = -1;
+        public int skippedNotes = -1;
+        public int addedNotes = -1;
+        // -1 if there was no score, or the aligner never got a tempo estimate.
+        public double beatsPerMinute = -1;
+        // What went wrong, if we couldn't process the file, or null if nothing did.
+        public String error;
+
+        /**
+         * How many seconds of audio we process per second of wall time.
+         */
+        public double getRealtimeFactor() {
+            return audioSeconds / wallSeconds;
+        }
+    }
+
+    private static class TranscriptionJob implements Callable<FileResult> {
+        private final File file;
+        private final ConcurrentMap<String, CompiledScore> scores;
+
+        TranscriptionJob(File file, ConcurrentMap<String, CompiledScore> scores) {
+            this.file = file;
+            this.scores = scores;
+        }
+
+        public FileResult call() {
+            FileResult result = new FileResult();
+            result.path = file.getPath();
+            long startTime = System.nanoTime();
+            try {
+                transcribe(result);
+            } catch(RuntimeException e) {
+                // Most of what can go wrong with a file (like not being able to read it) comes
+                // wrapped up in a RuntimeException, and the cause is the interesting part.
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                result.error = cause.toString();
+                System.err.println("Failed on " + file.getPath() + ": " + result.error);
+            }
+            result.wallSeconds = (System.nanoTime() - startTime) / 1e9;
+            return result;
+        }
+
+        private void transcribe(FileResult result) {
+            TranscriptionEngine engine = new TranscriptionEngine(new DesktopFileMicrophone(file));
+            engine.start();
+            try {
+                while (engine.sampleMic()) { }
+            } finally {
+                engine.stop();
+            }
+            List<TranscribedNote> notes = engine.getTranscribedNotes();
+
+            File scoreFile = findScoreFile(file);
+            if (scoreFile != null) {
+                CompiledScore score = getScore(scoreFile, scores);
+                NoteAligner aligner = new NoteAligner(score);
+                aligner.updateAlignment(notes);
+                result.scoreNotes = score.getNumNotes();
+                result.alignedNotes = 0;
+                result.skippedNotes = 0;
+                result.addedNotes = 0;
+                for (NotePair pair : aligner.getAlignment().getPairs()) {
+                    if (pair.getTranscribedNote() == null) {
+                        result.skippedNotes++;
+                    } else if (pair.getMusicNote() == null) {
+                        result.addedNotes++;
+                    } else {
+                        result.alignedNotes++;
+                    }
+                }
+                if (aligner.hasTempo()) {
+                    result.beatsPerMinute = aligner.getBeatsPerMinute();
+                }
+            }
+            result.audioSeconds = engine.getRawSignal().size() / (double) engine.getSampleRate();
+            result.numFfts = engine.getNumFfts();
+            result.silentPercentage = engine.getSilentColumnPercentage();
+            result.numNotes = notes.size();
+        }
+    }
+
+    private static void writeCsv(List<FileResult> results, PrintStream out) {
+        out.println("file,audio_seconds,wall_seconds,realtime_factor,ffts,silent_percentage," +
+                "notes,score_notes,aligned_notes,skipped_notes,added_notes,beats_per_minute," +
+                "error");
+        for (FileResult r : results) {
+            String error = "";
+            if (r.error != null) {
+                error = r.error.replace(",", "_").replace("\n", " ");
+            }
+            out.println(String.format(Locale.US,
+                        "%s,%.3f,%.3f,%.2f,%d,%.1f,%d,%d,%d,%d,%d,%.2f,%s",
+                        r.path.replace(",", "_"), r.audioSeconds, r.wallSeconds,
+                        r.getRealtimeFactor(), r.numFfts, r.silentPercentage, r.numNotes,
+                        r.scoreNotes, r.alignedNotes, r.skippedNotes, r.addedNotes,
+                        r.beatsPerMinute, error));
+        }
+    }
+
+    private static void writeJson(List<FileResult> results, PrintStream out) {
+        out.println("[");
+        for (int i=0; i<results.size(); i++) {
+            FileResult r = results.get(i);
+            String path = escapeJson(r.path);
+            out.print(String.format(Locale.US, "  {\"file\": \"%s\", \"audio_seconds\": %.3f, " +
+                        "\"wall_seconds\": %.3f, \"realtime_factor\": %.2f, \"ffts\": %d, " +
+                        "\"silent_percentage\": %.1f, \"notes\": %d", path, r.audioSeconds,
+                        r.wallSeconds, r.getRealtimeFactor(), r.numFfts, r.silentPercentage,
+                        r.numNotes));
+            if (r.scoreNotes != -1) {
+                out.print(String.format(Locale.US, ", \"score_notes\": %d, " +
+                            "\"aligned_notes\": %d, \"skipped_notes\": %d, " +
+                            "\"added_notes\": %d", r.scoreNotes, r.alignedNotes,
+                            r.skippedNotes, r.addedNotes));
+                if (r.beatsPerMinute != -1) {
+                    out.print(String.format(Locale.US, ", \"beats_per_minute\": %.2f",
+                                r.beatsPerMinute));
+                } else {
+                    out.print(", \"beats_per_minute\": null");
+                }
+            }
+            if (r.error != null) {
+                out.print(", \"error\": \"" + escapeJson(r.error) + "\"");
+            }
+            out.println(i < results.size() - 1 ? "}," : "}");
+        }
+        out.println("]");
+    }
+
+    private static String escapeJson(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -37,9 +37,10 @@ public class DesktopFileMicrophone implements Microphone {
         sampleRate = (int) stream.getFormat().getSampleRate();
         bitRate = stream.getFormat().getSampleSizeInBits();;
         bytesPerFrame = bitRate / 8;
-        System.out.println("Opened file " + file.getPath());
-        System.out.println("Sample rate: " + sampleRate);
-        System.out.println("Bit rate: " + bitRate);
+        // These go to stderr so they don't get mixed in with BatchTranscriber's reports.
+        System.err.println("Opened file " + file.getPath());
+        System.err.println("Sample rate: " + sampleRate);
+        System.err.println("Bit rate: " + bitRate);
     }
 
     @Override
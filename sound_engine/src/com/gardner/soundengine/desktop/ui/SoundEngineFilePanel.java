@@ -6,6 +6,7 @@ package com.gardner.soundengine.desktop.ui;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import java.awt.*;
 import java.awt.event.*;
@@ -33,6 +34,7 @@ public class SoundEngineFilePanel extends JPanel {
     private JLabel topAlignmentLabel;
     private JLabel bottomAlignmentLabel;
     private JLabel tempoLabel;
+    private JLabel positionLabel;
     private JLabel soundWaveLabel;
     private JLabel spectrogramLabel;
     private JScrollPane spectrogramScrollPane;
@@ -45,9 +47,12 @@ public class SoundEngineFilePanel extends JPanel {
     private double freq_per_pixel;
     private double freq_per_y;
 
+    // Used to compute the spectrograms of files in parallel.
+    private ForkJoinPool pool;
 
     public SoundEngineFilePanel() {
 
+        pool = new ForkJoinPool();
         setPreferredSize(new Dimension(1500, 750));
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 
@@ -87,6 +92,8 @@ public class SoundEngineFilePanel extends JPanel {
         bottomPanel.add(bottomAlignmentLabel);
         tempoLabel = new JLabel();
         bottomPanel.add(tempoLabel);
+        positionLabel = new JLabel();
+        bottomPanel.add(positionLabel);
         soundWaveLabel = new JLabel();
         bottomPanel.add(soundWaveLabel);
         spectrogramLabel = new JLabel();
@@ -96,7 +103,8 @@ public class SoundEngineFilePanel extends JPanel {
 
     private void runEngine(File file) {
         DesktopFileMicrophone microphone = new DesktopFileMicrophone(file);
-        TranscriptionEngine engine = new TranscriptionEngine(microphone);
+        // We draw the whole spectrogram when we're done, so we need to keep all of it.
+        TranscriptionEngine engine = new TranscriptionEngine(microphone, 60.0, false, 1);
 
         // Set up some variables here for drawing the spectrogram
         // Cut off the spectrogram plot above 4000 Hz, as it's not interesting
@@ -118,20 +126,15 @@ public class SoundEngineFilePanel extends JPanel {
         height = max_y * pixels_per_y;
         freq_per_pixel = freq_per_y / pixels_per_y;
 
-        double normalizer = (double) engine.getDataNormalizer();
         engine.start();
         int count = 0;
         long start_time = System.currentTimeMillis();
-        while (engine.sampleMic()) { }
+        engine.transcribeOffline(pool);
         long end_time = System.currentTimeMillis();
-        ArrayList<Double> data = new ArrayList<Double>();
-        for (int i : engine.getRawSignal()) {
-            data.add(i / normalizer);
-        }
-        double seconds = data.size() / (double) engine.getSampleRate();
+        double seconds = engine.getRawSignal().size() / (double) engine.getSampleRate();
         double proccessing_time = (end_time - start_time) / 1000.0;
         engine.stop();
-        List<List<Double>> spectrogram = engine.getSpectrogram();
+        Spectrogram spectrogram = engine.getSpectrogram();
         showSpectrogram(spectrogram, engine);
         showAlignment(engine, file);
         System.out.println("Audio file length: " + seconds);
@@ -156,6 +159,10 @@ public class SoundEngineFilePanel extends JPanel {
     private void alignNotes(List<TranscribedNote> notes, SheetMusic music) {
         NoteAligner aligner = new NoteAligner(music);
         aligner.updateAlignment(notes);
+        showAlignment(aligner);
+    }
+
+    private void showAlignment(NoteAligner aligner) {
         NoteAlignment alignment = aligner.getAlignment();
         String label = alignment.getStringRepresentation();
         String[] parts = label.split("\n");
@@ -192,7 +199,7 @@ public class SoundEngineFilePanel extends JPanel {
         soundWaveLabel.setIcon(new ImageIcon(image));
     }
 
-    private void showSpectrogram(List<List<Double>> spectrogram, TranscriptionEngine engine) {
+    private void showSpectrogram(Spectrogram spectrogram, TranscriptionEngine engine) {
         // Here we're drawing from a complete file, so we just set the width correctly
         width = spectrogram.size();
         System.out.println("Number of sound samples: " + spectrogram.size());
@@ -201,8 +208,8 @@ public class SoundEngineFilePanel extends JPanel {
 
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         Graphics2D g = (Graphics2D) image.getGraphics();
-        for (int x=0; x<spectrogram.size(); x++) {
-            drawSpectrogramColumn(spectrogram.get(x), x, g);
+        for (int x=spectrogram.getFirstColumn(); x<spectrogram.size(); x++) {
+            drawSpectrogramColumn(spectrogram, x, g);
         }
 
         for (TranscribedNote note : engine.getTranscribedNotes()) {
@@ -212,11 +219,13 @@ public class SoundEngineFilePanel extends JPanel {
         spectrogramLabel.setIcon(new ImageIcon(image));
     }
 
-    private void drawSpectrogramColumn(List<Double> column, int x, Graphics2D g) {
+    private void drawSpectrogramColumn(Spectrogram spectrogram, int x, Graphics2D g) {
+        float[] column = spectrogram.getColumnData(x);
+        int offset = spectrogram.getColumnOffset(x);
         float normalizer = 1500.0f;
         int current_y = height - 1;
         for (int y = 0; y < max_y; y++) {
-            float c = column.get(y).floatValue() / normalizer;
+            float c = column[offset + y] / normalizer;
             if (c > 1.0f) {
                 c = 1.0f;
             }
@@ -301,7 +310,8 @@ public class SoundEngineFilePanel extends JPanel {
         if (music == null) {
             fileLabel.setText("Live audio, no file loaded");
         }
-        liveEngine = new TranscriptionEngine(liveMicrophone);
+        // Practice sessions can go on for a long time, so only keep the last minute around.
+        liveEngine = new TranscriptionEngine(liveMicrophone, 60.0);
         // Set up some variables here for drawing the spectrogram
         // Cut off the spectrogram plot above 4000 Hz, as it's not interesting
         int max_freq = 4000;
@@ -322,7 +332,15 @@ public class SoundEngineFilePanel extends JPanel {
         height = max_y * pixels_per_y;
         freq_per_pixel = freq_per_y / pixels_per_y;
         lastColumn = 0;
-        lastNoteIndex = 0;
+        newNotes = false;
+        liveEngine.addTranscriptionListener(new LiveListener());
+        // The aligner keeps its state between updates, so it only has to look at new notes.
+        liveAligner = null;
+        liveFollower = null;
+        if (music != null) {
+            liveAligner = new NoteAligner(music);
+            liveFollower = new ScoreFollower(music);
+        }
 
         spectrogramImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         spectrogramLabel.setIcon(new ImageIcon(spectrogramImage));
@@ -335,7 +353,10 @@ public class SoundEngineFilePanel extends JPanel {
     private EngineRunner runner;
     private boolean running = false;
     private int lastColumn;
-    private int lastNoteIndex;
+    // Whether the engine has found any notes since the last update.
+    private boolean newNotes;
+    private NoteAligner liveAligner;
+    private ScoreFollower liveFollower;
     private BufferedImage spectrogramImage;
 
     private class EngineRunner extends Thread {
@@ -361,23 +382,50 @@ public class SoundEngineFilePanel extends JPanel {
         }
     }
 
-    private void update(SheetMusic music) {
-        Graphics2D g = (Graphics2D) spectrogramImage.getGraphics();
-        List<List<Double>> spectrogram = liveEngine.getSpectrogram();
-        if (spectrogram.size() >= width) {
-            growSpectrogramImage();
+    /**
+     * Draws the spectrogram and notes as the engine finds them.  This gets called on the
+     * EngineRunner thread, in the middle of sampleMic().
+     */
+    private class LiveListener implements TranscriptionListener {
+        public void columnsAdded(Spectrogram spectrogram, int firstWindow, int endWindow) {
+            while (endWindow >= width) {
+                growSpectrogramImage();
+            }
+            Graphics2D g = (Graphics2D) spectrogramImage.getGraphics();
+            for (int x=firstWindow; x<endWindow; x++) {
+                drawSpectrogramColumn(spectrogram, x, g);
+            }
+            g.dispose();
+            lastColumn = endWindow;
+        }
+
+        public void noteStarted(int startWindow, double startTime) {
         }
-        for (; lastColumn<spectrogram.size(); lastColumn++) {
-            drawSpectrogramColumn(spectrogram.get(lastColumn), lastColumn, g);
+
+        public void noteEnded(TranscribedNote note) {
+            Graphics2D g = (Graphics2D) spectrogramImage.getGraphics();
+            drawTranscribedNote(note, g);
+            g.dispose();
+            newNotes = true;
         }
+    }
+
+    private void update(SheetMusic music) {
         List<TranscribedNote> notes = liveEngine.getTranscribedNotes();
-        for (; lastNoteIndex<notes.size(); lastNoteIndex++) {
-            drawTranscribedNote(notes.get(lastNoteIndex), g);
-            if (music != null) {
-                alignNotes(notes, music);
+        if (newNotes && liveFollower != null) {
+            // The follower is cheap and doesn't slow down as the piece goes on, so it goes first.
+            ScorePosition position = liveFollower.update(notes);
+            if (position.getMusicNote() != null) {
+                positionLabel.setText(String.format("At note %d (%s), confidence %.2f",
+                            position.getNoteIndex() + 1, position.getMusicNote().getName(),
+                            position.getConfidence()));
             }
         }
-        g.dispose();
+        if (newNotes && liveAligner != null) {
+            liveAligner.updateAlignment(notes);
+            showAlignment(liveAligner);
+        }
+        newNotes = false;
         Rectangle r = new Rectangle();
         r.x = lastColumn;
         spectrogramLabel.scrollRectToVisible(r);
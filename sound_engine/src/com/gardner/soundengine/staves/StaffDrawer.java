@@ -1,6 +1,11 @@
 package com.gardner.soundengine.staves;
 
 public class StaffDrawer {
+    // How many lines or spaces up from C each of the twelve notes in an octave sits, starting at C.
+    // Sharps sit on the same line or space as the note below them.
+    private static final int[] STAFF_STEPS = new int[] {0, 0, 1, 1, 2, 3, 3, 4, 4, 5, 5, 6};
+    // B4, the middle line on a treble clef, as lines or spaces up from C-1 (MIDI note 0).
+    private static final int TREBLE_MIDDLE_STEP = 5 * 7 + 6;
 
     public void drawStaff(StaffCanvas canvas, StaffSize size, StaffImageUtil util) {
         canvas.setColor(0); // 0 should be black
@@ -24,8 +29,8 @@ public class StaffDrawer {
     }
 
     public void drawQuarterNoteOnTrebleClef(StaffCanvas canvas, StaffSize size,
-            StaffImageUtil util, String noteName, int xOffset) {
-        drawNote(canvas, size, util.getQuarterNote(size), getLineOrSpace(noteName, "treble"),
+            StaffImageUtil util, int midiNote, int xOffset) {
+        drawNote(canvas, size, util.getQuarterNote(size), getLineOrSpace(midiNote, "treble"),
                 xOffset, size.getQuarterNoteYOffset());
     }
 
@@ -55,22 +60,20 @@ public class StaffDrawer {
      * Return the number of note positions (lines or spaces) up or down from the middle line on the
      * staff.
      *
-     * Note names must be uppercase.  We look at the first character (the base note name, minus
-     * accidentals) and the last character (the octave number).
+     * The note is a MIDI number; accidentals are drawn on the same line or space as the natural
+     * note below them.  Negative numbers (like the -1 we use for "no note") have no place on the
+     * staff, so they get an IllegalArgumentException instead of a nonsense position.
      */
-    private int getLineOrSpace(String noteName, String clefName) {
+    private int getLineOrSpace(int midiNote, String clefName) {
+        if (midiNote < 0) {
+            throw new IllegalArgumentException("Can't draw MIDI note " + midiNote);
+        }
         // I don't really like using clefName as a string here, it should probably be an enum, but
         // that's ok for now. TODOLATER
         if (clefName.equals("treble")) {
             // On a treble clef, B4 is the middle line.
-            int noteOffset = noteName.charAt(0) - 'B';
-            int octaveOffset = noteName.charAt(noteName.length()-1) - '4';
-            if (noteOffset > 0) {
-                octaveOffset -= 1;
-            }
-            System.out.println("Note: " + noteName + "; noteOffset: " + noteOffset +
-                    "; octaveOffset: " + octaveOffset);
-            return noteOffset + octaveOffset * 7;
+            int step = (midiNote / 12) * 7 + STAFF_STEPS[midiNote % 12];
+            return step - TREBLE_MIDDLE_STEP;
         } else {
             throw new UnsupportedOperationException();
         }
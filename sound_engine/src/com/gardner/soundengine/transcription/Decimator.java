@@ -0,0 +1,128 @@
+package com.gardner.soundengine.transcription;
+
+/**
+ * Reduces the sample rate of a signal by an integer factor, low-pass filtering it first so that
+ * nothing above the new Nyquist frequency aliases down into the range we care about.
+ *
+ * The filter is a Hamming-windowed sinc FIR filter.  Because we only keep every factor-th output,
+ * we only compute those outputs (which is what a polyphase decimator amounts to), so the cost per
+ * input sample is taps / factor multiply-adds.  Filter state is kept across calls to decimate, so
+ * the signal can be fed in one buffer at a time.
+ *
+ * The filter's ripple means a loud (or clipped) input can come out a little bigger than it went
+ * in, so outputs are clamped to the range of the input's sample size.  Everything downstream
+ * assumes samples fit in that range; FFT's table for 8 bit audio, for one, has exactly 256
+ * entries.
+ */
+public class Decimator {
+    // Filter taps per unit of decimation factor.  More taps give a sharper cutoff.
+    private static final int TAPS_PER_FACTOR = 16;
+    // The cutoff, as a fraction of the new Nyquist frequency.  Leaving some room below Nyquist
+    // lets the filter roll off before anything can alias.
+    private static final double CUTOFF = .9;
+
+    private final int factor;
+    private final int minValue;
+    private final int maxValue;
+    private final double[] taps;
+    // The last taps.length input samples, in a ring, with the newest at historyPos - 1.
+    private final double[] history;
+    private int historyPos;
+    // How many input samples until the next output sample.
+    private int untilNextOutput;
+
+    /**
+     * The highest frequency (in Hz) that makes it through decimating sampleRate audio by factor
+     * without being filtered out.  Anything we want to hear had better be below this.
+     */
+    public static double getCutoffFrequency(int factor, int sampleRate) {
+        return CUTOFF * .5 * sampleRate / factor;
+    }
+
+    /**
+     * Create a decimator for samples that are bytesPerFrame bytes each.
+     */
+    public Decimator(int factor, int bytesPerFrame) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Decimation factor must be positive: " + factor);
+        }
+        if (bytesPerFrame < 1 || bytesPerFrame > 2) {
+            throw new IllegalArgumentException("Unsupported bytes per frame: " + bytesPerFrame);
+        }
+        this.factor = factor;
+        maxValue = (1 << (8 * bytesPerFrame - 1)) - 1;
+        minValue = -maxValue - 1;
+        int numTaps = TAPS_PER_FACTOR * factor + 1;
+        taps = new double[numTaps];
+        double cutoff = CUTOFF * .5 / factor;
+        int middle = numTaps / 2;
+        double sum = 0.0;
+        for (int i=0; i<numTaps; i++) {
+            int n = i - middle;
+            double sinc;
+            if (n == 0) {
+                sinc = 2 * cutoff;
+            } else {
+                sinc = Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            }
+            double window = .54 - .46 * Math.cos(2 * Math.PI * i / (numTaps - 1));
+            taps[i] = sinc * window;
+            sum += taps[i];
+        }
+        // Normalize for unity gain at DC.
+        for (int i=0; i<numTaps; i++) {
+            taps[i] /= sum;
+        }
+        history = new double[numTaps];
+        historyPos = 0;
+        untilNextOutput = 1;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * Filter and decimate length samples of input, putting the results in output, and returning
+     * how many output samples there were (length / factor, give or take one, depending on where
+     * the last call left off).  Output samples are rounded back to integers, as everything
+     * downstream expects integer samples.
+     */
+    public int decimate(short[] input, int length, short[] output) {
+        int numOutputs = 0;
+        for (int i=0; i<length; i++) {
+            history[historyPos] = input[i];
+            historyPos++;
+            if (historyPos == history.length) {
+                historyPos = 0;
+            }
+            untilNextOutput--;
+            if (untilNextOutput == 0) {
+                output[numOutputs++] = filter();
+                untilNextOutput = factor;
+            }
+        }
+        return numOutputs;
+    }
+
+    private short filter() {
+        // taps[0] goes with the newest sample.  The filter is symmetric, so the order doesn't
+        // really matter, but this keeps things honest.
+        double sum = 0.0;
+        int pos = historyPos;
+        for (int k=0; k<taps.length; k++) {
+            pos--;
+            if (pos < 0) {
+                pos = history.length - 1;
+            }
+            sum += taps[k] * history[pos];
+        }
+        long rounded = Math.round(sum);
+        if (rounded > maxValue) {
+            return (short) maxValue;
+        } else if (rounded < minValue) {
+            return (short) minValue;
+        }
+        return (short) rounded;
+    }
+}
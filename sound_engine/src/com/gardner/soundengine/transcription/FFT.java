@@ -1,82 +1,266 @@
 package com.gardner.soundengine.transcription;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 
 import com.gardner.soundengine.common.*;
 
 public class FFT {
-    private DoubleFFT_1D fft;
-    private int fftSize;
-    private DoubleFFT_1D stft;
-    private int stftSize;
-    private double[] windowWeights;
+    // How many note-sized plans we keep around.  Note lengths are multiples of the window step
+    // size, so a piece only uses a few dozen distinct sizes, and most notes are much shorter than
+    // a second.
+    private static final int MAX_CACHED_PLANS = 16; // PARAMTODO
 
-    public FFT(int dataSize, int spectrogramWindowSize) {
-        fft = new DoubleFFT_1D(dataSize);
-        fftSize = dataSize;
-        stft = new DoubleFFT_1D(spectrogramWindowSize);
-        stftSize = spectrogramWindowSize;
+    // The spectrogram plan is a fixed size which we use constantly, so it's kept out of the cache
+    // so that it can never be evicted.  The other plans are for whole-note transforms, whose size
+    // changes with every note, and live in an LRU cache keyed by the number of input samples.
+    private Plan stftPlan;
+    private Map<Integer, Plan> plans;
+    private boolean zeroPad;
+    private double magnitudeScale;
+
+    // Log compression lookup table, indexed by sample value + logTableOffset.
+    private final double[] logTable;
+    private final int logTableOffset;
+
+    // Only used to know which frequencies are worth looking for peaks at.
+    private final Tuning tuning;
+
+    public FFT(int dataSize, int spectrogramWindowSize, int bytesPerFrame) {
+        this(dataSize, spectrogramWindowSize, bytesPerFrame, NoteUtil.getDefaultTuning());
+    }
+
+    public FFT(int dataSize, int spectrogramWindowSize, int bytesPerFrame, Tuning tuning) {
+        this.tuning = tuning;
+        if (bytesPerFrame == 1) {
+            logTable = EightBitLogTable.TABLE;
+        } else if (bytesPerFrame == 2) {
+            logTable = SixteenBitLogTable.TABLE;
+        } else {
+            throw new RuntimeException("Unsupported bytes per frame: " + bytesPerFrame);
+        }
+        logTableOffset = logTable.length / 2;
+        stftPlan = new Plan(spectrogramWindowSize, spectrogramWindowSize, null);
+        plans = new LinkedHashMap<Integer, Plan>(MAX_CACHED_PLANS, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Plan> eldest) {
+                return size() > MAX_CACHED_PLANS;
+            }
+        };
+        zeroPad = false;
+        magnitudeScale = 1.0;
+        getPlan(dataSize);
+    }
+
+    /**
+     * If set, transforms whose size is not a power of two get zero-padded up to the next power of
+     * two, instead of going through JTransforms' much slower arbitrary-size algorithm.  This gives
+     * more (interpolated) frequency bins, so the magnitude arrays get longer, but the frequency of
+     * bin i is still sampleRate * i / (2 * magnitudeArray.length).
+     */
+    public void setZeroPadding(boolean zeroPad) {
+        if (zeroPad != this.zeroPad) {
+            plans.clear();
+        }
+        this.zeroPad = zeroPad;
     }
 
-    private void computeWindowWeights(int n) {
+    /**
+     * Multiply all magnitudes by scale.  This is for when the signal has been decimated: a
+     * transform over a quarter as many samples gives magnitudes about a quarter as large.
+     */
+    public void setMagnitudeScale(double scale) {
+        magnitudeScale = scale;
+    }
+
+    /**
+     * Everything needed to do a transform of one particular size without allocating anything:
+     * the JTransforms object, the window weights, and a scratch array to do the transform in.
+     * numSamples is the number of signal samples that go in; transformSize is the size of the
+     * actual transform, which is larger if we're zero-padding.
+     */
+    private static class Plan {
+        final int numSamples;
+        final int transformSize;
+        final DoubleFFT_1D fft;
+        final double[] windowWeights;
+        final double[] scratch;
+
+        Plan(int numSamples, int transformSize, DoubleFFT_1D fft) {
+            this.numSamples = numSamples;
+            this.transformSize = transformSize;
+            if (fft == null) {
+                fft = new DoubleFFT_1D(transformSize);
+            }
+            this.fft = fft;
+            windowWeights = computeWindowWeights(numSamples);
+            scratch = new double[transformSize];
+        }
+    }
+
+    /**
+     * Samples are 8 or 16 bit integers, so instead of calling Math.log on every sample we look up
+     * the half-wave rectified log compression of every possible value.  Entry i is the value for
+     * sample (i - length / 2), and is 0 for non-positive samples.  The 16 bit table is 512 KB, so
+     * it's in its own holder class and only gets built if we actually see 16 bit audio.
+     */
+    private static class EightBitLogTable {
+        static final double[] TABLE = computeLogTable(8);
+    }
+
+    private static class SixteenBitLogTable {
+        static final double[] TABLE = computeLogTable(16);
+    }
+
+    private static double[] computeLogTable(int bits) {
+        double[] table = new double[1 << bits];
+        int offset = table.length / 2;
+        for (int val=1; val<offset; val++) {
+            table[val + offset] = Math.log(val);
+        }
+        return table;
+    }
+
+    private static double[] computeWindowWeights(int n) {
         // This uses a Hamming window.  I could make it pluggable for different windows, but I see
         // no reason to right now.
-        windowWeights = new double[n];
+        double[] windowWeights = new double[n];
         for (int i=0; i<n; i++) {
             double angle = 2 * Math.PI * i / (n - 1);
             windowWeights[i] = .54 - .46 * Math.cos(angle);
         }
+        return windowWeights;
     }
 
-    public double[] doFft(int start, int end, List<Integer> signal) {
-        // First we copy the data from signal into fftArray, doing whatever windowing, compression
-        // and rectification is desired
-        double[] fftArray = new double[(end - start) * 2];
-        for (int i=0; i<(end-start); i++) {
-            int val = signal.get(i+start);
-            // Half-wave rectification and log compression
-            if (val > 0) {
-                if (windowWeights == null || windowWeights.length != (end-start)) {
-                    computeWindowWeights(end-start);
-                }
-                fftArray[2*i] = windowWeights[i] * Math.log(val);
+    private Plan getPlan(int numSamples) {
+        if (numSamples == stftPlan.numSamples) {
+            return stftPlan;
+        }
+        Plan plan = plans.get(numSamples);
+        if (plan == null) {
+            int transformSize = getTransformSize(numSamples);
+            // When zero-padding, lots of different note lengths share a transform size, and the
+            // JTransforms object is the expensive part of a plan, so share it if we can.
+            DoubleFFT_1D shared = null;
+            if (transformSize == stftPlan.transformSize) {
+                shared = stftPlan.fft;
             } else {
-                fftArray[2*i] = 0;
+                for (Plan other : plans.values()) {
+                    if (other.transformSize == transformSize) {
+                        shared = other.fft;
+                        break;
+                    }
+                }
             }
-            // Complex part of fftArray is zero
-            fftArray[2*i+1] = 0;
-        }
-
-        // Now we do the FFT, in place, on fftArray.  We keep around two different JTransforms FFT
-        // objects; the first (stft) is a fixed size which we perform frequently to generate the
-        // spectrogram.  The second (fft) changes its size based on what transforms need to be
-        // done, and generally gets used once per note played.  The condition (array.length =
-        // fftSize) is mostly just a chance coincidence if it ever happens, but if it does will
-        // give us a small speed improvement.
-        int numSamples = fftArray.length / 2;
-        if (numSamples == stftSize) {
-            stft.complexForward(fftArray);
-        } else if (numSamples == fftSize) {
-            fft.complexForward(fftArray);
-        } else {
-            fft = new DoubleFFT_1D(numSamples);
-            fftSize = numSamples;
-            fft.complexForward(fftArray);
+            plan = new Plan(numSamples, transformSize, shared);
+            plans.put(numSamples, plan);
         }
+        return plan;
+    }
 
-        // Finally, compute the magnitudes from the complex fft.  Only the first half of the fft
-        // contains useful data, so the array is of size numSamples / 2.
-        double[] magnitudeArray = new double[numSamples / 2];
-        for (int i=0; i<numSamples/2; i++) {
-            double mag = Math.sqrt(fftArray[2*i]*fftArray[2*i] + fftArray[2*i+1]*fftArray[2*i+1]);
-            magnitudeArray[i] = mag;
+    /**
+     * The size of the transform we actually do for numSamples samples of input.  The magnitude
+     * array has half this many entries.
+     */
+    public int getTransformSize(int numSamples) {
+        if (!zeroPad) {
+            return numSamples;
+        }
+        int size = Integer.highestOneBit(numSamples);
+        if (size < numSamples) {
+            size <<= 1;
         }
+        return size;
+    }
+
+    /**
+     * Convenience version of doFft that allocates and returns the magnitude array, of size
+     * getTransformSize(end - start) / 2.
+     */
+    public double[] doFft(long start, long end, SignalBuffer signal) {
+        double[] magnitudeArray = new double[getTransformSize((int) (end - start)) / 2];
+        doFft(start, end, signal, magnitudeArray);
         return magnitudeArray;
     }
 
+    /**
+     * Compute the magnitudes of the FFT of signal[start:end], putting them into magnitudeArray,
+     * which must have room for at least getTransformSize(end - start) / 2 entries.  Only the first
+     * half of the FFT contains useful data, so that's all we compute.  This doesn't allocate
+     * anything unless a plan for this size isn't already cached.
+     */
+    public void doFft(long start, long end, SignalBuffer signal, double[] magnitudeArray) {
+        int numSamples = (int) (end - start);
+        Plan plan = getPlan(numSamples);
+        double[] fftArray = plan.scratch;
+
+        // First we copy the data from signal into fftArray, doing whatever windowing, compression
+        // and rectification is desired
+        preprocess(start, end, signal, plan.windowWeights, fftArray);
+        for (int i=numSamples; i<plan.transformSize; i++) {
+            fftArray[i] = 0;
+        }
+
+        // Now we do the FFT, in place, on fftArray.  The input is real, so we can use the real
+        // transform, which does about half of the work of the complex one.
+        plan.fft.realForward(fftArray);
+
+        // Finally, compute the magnitudes.  realForward packs the output as [Re(0), x, Re(1),
+        // Im(1), Re(2), Im(2), ...], where x is the last bin, which we don't need.  Bin 0 is
+        // purely real.
+        int numBins = plan.transformSize / 2;
+        double scale = magnitudeScale;
+        if (numBins > 0) {
+            magnitudeArray[0] = scale * Math.abs(fftArray[0]);
+        }
+        for (int i=1; i<numBins; i++) {
+            double re = fftArray[2*i];
+            double im = fftArray[2*i+1];
+            magnitudeArray[i] = scale * Math.sqrt(re*re + im*im);
+        }
+    }
+
+    /**
+     * Half-wave rectification, log compression and windowing of signal[start:end], written into
+     * out.  This is done in a single pass straight out of the signal's ring buffer, with the
+     * rectification and log coming from logTable, so there are no branches or calls to Math.log.
+     */
+    void preprocess(long start, long end, SignalBuffer signal, double[] windowWeights,
+            double[] out) {
+        signal.checkRange(start, end);
+        short[] samples = signal.getSamples();
+        int mask = signal.getMask();
+        double[] table = logTable;
+        int offset = logTableOffset;
+        int numSamples = (int) (end - start);
+        // Wrap once up front, so the loop can stay in int arithmetic.
+        int first = (int) (start & mask);
+        for (int i=0; i<numSamples; i++) {
+            out[i] = windowWeights[i] * table[samples[(first + i) & mask] + offset];
+        }
+    }
+
+    /**
+     * The sum of the half-wave rectified, log compressed samples in signal[start:end] (i.e., what
+     * preprocess computes, without the window).  This is what SilenceGate uses to find silence.
+     */
+    double compressedSum(long start, long end, SignalBuffer signal) {
+        signal.checkRange(start, end);
+        short[] samples = signal.getSamples();
+        int mask = signal.getMask();
+        int numSamples = (int) (end - start);
+        int first = (int) (start & mask);
+        double sum = 0.0;
+        for (int i=0; i<numSamples; i++) {
+            sum += logTable[samples[(first + i) & mask] + logTableOffset];
+        }
+        return sum;
+    }
+
     /**
      * Find a peak frequency from the FFT magnitudeArray that is close to likely_pitch.
      */
@@ -97,7 +281,7 @@ public class FFT {
     /**
      * A simple peak finding algorithm that returns a list of peaks from magnitudes.  min_mag is a
      * threshold that creates a disjoint set of places to search for a peak, and we find the max in
-     * each region (done by the helper method computePeakFrequency).  We also use NoteUtil's min
+     * each region (done by the helper method computePeakFrequency).  We also use the tuning's min
      * and max frequency to ignore regions of the space we don't care about.
      *
      * Another thing to note here is that we skip the first region above min_mag, assuming it is
@@ -117,10 +301,12 @@ public class FFT {
         // Here we're assuming that magnitudes were computed for the first half of the transform
         // signal only.
         int num_bins = magnitudes.length * 2;
+        double minFrequency = tuning.getMinFrequency();
+        double maxFrequency = tuning.getMaxFrequency();
 
         for (int i=0; i<magnitudes.length; i++) {
             double freq = sampleRate * i / num_bins;
-            if (freq < NoteUtil.getMinFrequency() || freq > NoteUtil.getMaxFrequency()) {
+            if (freq < minFrequency || freq > maxFrequency) {
                 continue;
             }
             if (magnitudes[i] > min_mag && freq != 0) {
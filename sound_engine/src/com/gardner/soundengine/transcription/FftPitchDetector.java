@@ -0,0 +1,28 @@
+package com.gardner.soundengine.transcription;
+
+/**
+ * The original way of finding a note's pitch: an FFT over the whole note, taking the spectral peak
+ * closest to the spectrogram's guess.  The FFT is long enough to give much better frequency
+ * resolution than a spectrogram column, but its cost grows with the length of the note.
+ */
+public class FftPitchDetector implements PitchDetector {
+    private final FFT fft;
+    private final int sampleRate;
+    private int numFfts;
+
+    public FftPitchDetector(FFT fft, int sampleRate) {
+        this.fft = fft;
+        this.sampleRate = sampleRate;
+        numFfts = 0;
+    }
+
+    public double detectPitch(SignalBuffer signal, long start, long end, double likelyPitch) {
+        double[] magnitudeArray = fft.doFft(start, end, signal);
+        numFfts++;
+        return fft.getPeakCloseToPitch(magnitudeArray, likelyPitch, sampleRate);
+    }
+
+    public int getNumFfts() {
+        return numFfts;
+    }
+}
@@ -0,0 +1,91 @@
+package com.gardner.soundengine.transcription;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Finds a note's pitch with the harmonic product spectrum.  The magnitude spectrum is multiplied
+ * by copies of itself squeezed by factors of 2, 3, ..., so that only a frequency whose harmonics
+ * are all present ends up large.  Picking the biggest peak in a plain spectrum often gets the
+ * second harmonic instead of the fundamental (an octave error); this doesn't.
+ *
+ * This uses the same whole-note FFT as FftPitchDetector, so costs about the same, but doesn't
+ * need a guess from the spectrogram.
+ */
+public class HpsPitchDetector implements PitchDetector {
+    // How many harmonics (counting the fundamental) get multiplied together.
+    private static final int NUM_HARMONICS = 4; // PARAMTODO
+    // Keeps the log of an empty bin finite.
+    private static final double MAGNITUDE_FLOOR = 1e-6;
+
+    private final FFT fft;
+    private final int sampleRate;
+    private final Tuning tuning;
+    private double[] logMagnitudes;
+    private int numFfts;
+
+    public HpsPitchDetector(FFT fft, int sampleRate, Tuning tuning) {
+        this.fft = fft;
+        this.sampleRate = sampleRate;
+        this.tuning = tuning;
+        logMagnitudes = new double[0];
+        numFfts = 0;
+    }
+
+    public double detectPitch(SignalBuffer signal, long start, long end, double likelyPitch) {
+        double[] magnitudes = fft.doFft(start, end, signal);
+        numFfts++;
+        int numBins = magnitudes.length;
+        // The frequency of bin i is sampleRate * i / (2 * numBins); see FFT.setZeroPadding.
+        double binWidth = sampleRate / (2.0 * numBins);
+        if (logMagnitudes.length < numBins) {
+            logMagnitudes = new double[numBins];
+        }
+        for (int i=0; i<numBins; i++) {
+            logMagnitudes[i] = Math.log(magnitudes[i] + MAGNITUDE_FLOOR);
+        }
+
+        // Working with logs turns the product into a sum, which can't overflow.
+        int minBin = Math.max(1, (int) Math.ceil(tuning.getMinFrequency() / binWidth));
+        int maxBin = Math.min((numBins - 1) / NUM_HARMONICS,
+                (int) (tuning.getMaxFrequency() / binWidth));
+        int bestBin = -1;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int bin=minBin; bin<=maxBin; bin++) {
+            double sum = 0.0;
+            for (int h=1; h<=NUM_HARMONICS; h++) {
+                sum += logMagnitudes[bin * h];
+            }
+            if (sum > best) {
+                best = sum;
+                bestBin = bin;
+            }
+        }
+        if (bestBin == -1 || magnitudes[bestBin] == 0.0) {
+            return 0.0;
+        }
+
+        // The product's peak is only as precise as a bin, so refine it by fitting a parabola to
+        // the fundamental's peak in the plain spectrum.
+        int peak = bestBin;
+        if (peak > 1 && magnitudes[peak-1] > magnitudes[peak]) {
+            peak--;
+        } else if (peak < numBins - 2 && magnitudes[peak+1] > magnitudes[peak]) {
+            peak++;
+        }
+        double offset = 0.0;
+        if (peak > 0 && peak < numBins - 1) {
+            double left = magnitudes[peak-1];
+            double center = magnitudes[peak];
+            double right = magnitudes[peak+1];
+            double denominator = left - 2 * center + right;
+            if (denominator < 0) {
+                offset = .5 * (left - right) / denominator;
+            }
+        }
+        return (peak + offset) * binWidth;
+    }
+
+    public int getNumFfts() {
+        return numFfts;
+    }
+}
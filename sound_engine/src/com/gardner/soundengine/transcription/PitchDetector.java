@@ -0,0 +1,25 @@
+package com.gardner.soundengine.transcription;
+
+/**
+ * Works out the pitch of a single note from the raw signal it was played in.  TranscriptionEngine
+ * finds where notes start and end from the spectrogram, and then hands each one to a
+ * PitchDetector; which one it uses is a trade-off between cost, latency and accuracy.
+ *
+ * FftPitchDetector (the default) does an FFT over the whole note, which is accurate but gets
+ * expensive for long notes.  YinPitchDetector only needs a few hundred samples of the note, in the
+ * time domain, and HpsPitchDetector is less prone to picking the wrong harmonic.
+ *
+ * Detectors keep scratch space around between calls, so they aren't thread safe.
+ */
+public interface PitchDetector {
+    /**
+     * The pitch of the note played in signal[start:end], in Hz, or 0 if there doesn't seem to be
+     * one.  likelyPitch is a rough guess (from the spectrogram) that detectors are free to ignore.
+     */
+    public double detectPitch(SignalBuffer signal, long start, long end, double likelyPitch);
+
+    /**
+     * The number of FFTs this detector has done so far.
+     */
+    public int getNumFfts();
+}
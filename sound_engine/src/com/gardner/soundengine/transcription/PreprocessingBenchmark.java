@@ -0,0 +1,77 @@
+package com.gardner.soundengine.transcription;
+
+import java.util.Random;
+
+/**
+ * A quick microbenchmark comparing FFT's lookup-table preprocessing against the straightforward
+ * loop it replaced (checking the sign and calling Math.log for every sample).  Run it with
+ * "ant benchmark-preprocessing".
+ */
+public class PreprocessingBenchmark {
+    private static final int WINDOW_SIZE = 2048;
+    private static final int ITERATIONS = 20000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        for (int bytesPerFrame = 1; bytesPerFrame <= 2; bytesPerFrame++) {
+            runBenchmark(bytesPerFrame);
+        }
+    }
+
+    private static void runBenchmark(int bytesPerFrame) {
+        int maxValue = 1 << (8 * bytesPerFrame - 1);
+        Random random = new Random(0);
+        SignalBuffer signal = new SignalBuffer(1 << 16);
+        for (int i=0; i<signal.getCapacity(); i++) {
+            signal.add(random.nextInt(2 * maxValue) - maxValue);
+        }
+        FFT fft = new FFT(WINDOW_SIZE, WINDOW_SIZE, bytesPerFrame);
+        double[] window = new double[WINDOW_SIZE];
+        for (int i=0; i<WINDOW_SIZE; i++) {
+            window[i] = .54 - .46 * Math.cos(2 * Math.PI * i / (WINDOW_SIZE - 1));
+        }
+        double[] out = new double[WINDOW_SIZE];
+
+        System.out.println((8 * bytesPerFrame) + " bit samples, " + WINDOW_SIZE +
+                " sample windows, " + ITERATIONS + " windows per round");
+        for (int round=0; round<ROUNDS; round++) {
+            double checksum = 0;
+            long start = System.nanoTime();
+            for (int j=0; j<ITERATIONS; j++) {
+                long first = (j * 256) % (signal.size() - WINDOW_SIZE);
+                naivePreprocess(first, first + WINDOW_SIZE, signal, window, out);
+                checksum += out[j % WINDOW_SIZE];
+            }
+            long naiveTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int j=0; j<ITERATIONS; j++) {
+                long first = (j * 256) % (signal.size() - WINDOW_SIZE);
+                fft.preprocess(first, first + WINDOW_SIZE, signal, window, out);
+                checksum -= out[j % WINDOW_SIZE];
+            }
+            long tableTime = System.nanoTime() - start;
+
+            System.out.println(String.format(
+                        "Round %d: naive %.1f ns/window, table %.1f ns/window, speedup %.2fx " +
+                        "(checksum %.1f)", round, naiveTime / (double) ITERATIONS,
+                        tableTime / (double) ITERATIONS, naiveTime / (double) tableTime,
+                        checksum));
+        }
+    }
+
+    /**
+     * This is what FFT.doFft used to do.
+     */
+    private static void naivePreprocess(long start, long end, SignalBuffer signal,
+            double[] windowWeights, double[] out) {
+        for (int i=0; i<(end-start); i++) {
+            int val = signal.get(i+start);
+            if (val > 0) {
+                out[i] = windowWeights[i] * Math.log(val);
+            } else {
+                out[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.gardner.soundengine.transcription;
+
+/**
+ * A fixed-size ring buffer of raw audio samples.  Samples are indexed by their absolute position
+ * in the audio stream (the same frame numbers TranscriptionEngine uses for its windows), but only
+ * the most recent getCapacity() samples are retained, so a recording of any length takes a
+ * constant amount of memory.
+ *
+ * Samples are stored as shorts, which is enough for the 8 and 16 bit audio we currently handle.
+ * Positions are longs, because an int runs out after about 13.5 hours at 44100 Hz, and a buffer
+ * that never grows has no reason to stop there.
+ */
+public class SignalBuffer {
+    private final short[] samples;
+    private final int mask;
+    // Volatile so that one thread can add samples while another reads older ones; see add.
+    private volatile long size;
+
+    /**
+     * Create a buffer that retains at least minCapacity samples.  The actual capacity is rounded
+     * up to a power of two, so that wrapping an index is just a bit mask.
+     */
+    public SignalBuffer(int minCapacity) {
+        if (minCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + minCapacity);
+        }
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        samples = new short[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    public void add(int sample) {
+        samples[(int) (size & mask)] = (short) sample;
+        size++;
+    }
+
+    /**
+     * Add length samples from data, starting at offset.  Only one thread may add samples, but
+     * other threads can safely read any sample below size(), as long as they read it before it
+     * gets overwritten (i.e., they don't fall more than getCapacity() samples behind).  This only
+     * updates size once, so prefer it to add(int) when adding a whole buffer at a time.
+     */
+    public void add(short[] data, int offset, int length) {
+        long next = size;
+        for (int i=0; i<length; i++) {
+            samples[(int) ((next + i) & mask)] = data[offset + i];
+        }
+        size = next + length;
+    }
+
+    /**
+     * Get the sample at the given absolute index.  The index must be between getFirstIndex()
+     * (inclusive) and size() (exclusive).
+     */
+    public int get(long index) {
+        if (index < getFirstIndex() || index >= size) {
+            throw new IndexOutOfBoundsException("Sample " + index + " not retained (have " +
+                    getFirstIndex() + " to " + size + ")");
+        }
+        return samples[(int) (index & mask)];
+    }
+
+    /**
+     * The total number of samples ever added to this buffer, which is one past the last valid
+     * index.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The oldest absolute index that is still retained in the buffer.
+     */
+    public long getFirstIndex() {
+        return Math.max(0, size - samples.length);
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    /**
+     * Throw an exception unless every sample from start (inclusive) to end (exclusive) is
+     * retained.  Used together with getSamples and getMask by code that wants to read a range of
+     * samples without checking each index.
+     */
+    void checkRange(long start, long end) {
+        if (start < getFirstIndex() || end > size || start > end) {
+            throw new IndexOutOfBoundsException("Samples " + start + " to " + end +
+                    " not retained (have " + getFirstIndex() + " to " + size + ")");
+        }
+    }
+
+    /**
+     * The backing array; sample i is at getSamples()[(int) (i & getMask())].
+     */
+    short[] getSamples() {
+        return samples;
+    }
+
+    int getMask() {
+        return mask;
+    }
+}
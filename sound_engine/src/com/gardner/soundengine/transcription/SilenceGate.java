@@ -0,0 +1,69 @@
+package com.gardner.soundengine.transcription;
+
+/**
+ * Decides which spectrogram windows are silent enough that we don't need to bother doing an FFT
+ * for them.  The measure we use is the sum, over the window, of the half-wave rectified and log
+ * compressed samples; that is, exactly the signal that goes into the spectrogram FFT, minus the
+ * window weights.  It's kept as a sum per window step, so each new window only costs one step's
+ * worth of table lookups.
+ *
+ * With a threshold of 0 (the default), a window only counts as silent if every sample in it is
+ * at most 1, in which case the FFT would have been exactly zero anyway, so skipping it changes
+ * nothing.  With a higher threshold, skipped windows are just treated as zero even if they
+ * weren't quite, and so that a skipped window never ends up in the middle of a note, we only
+ * skip after quietRun windows in a row have already been under the threshold (by which point any
+ * note has ended).
+ *
+ * Columns must be checked in order, one at a time, as the per-step sums are kept in a ring.
+ */
+class SilenceGate {
+    private final FFT fft;
+    private final int windowStepSize;
+    private final double[] stepSums;
+    private final double threshold;
+    private final int quietRun;
+    private int nextStep;
+    private int quietColumns;
+
+    SilenceGate(FFT fft, int windowStepSize, int spectrogramWindowSize, double threshold,
+            int quietRun) {
+        this.fft = fft;
+        this.windowStepSize = windowStepSize;
+        this.threshold = threshold;
+        if (threshold > 0) {
+            this.quietRun = quietRun;
+        } else {
+            this.quietRun = 0;
+        }
+        stepSums = new double[spectrogramWindowSize / windowStepSize];
+        nextStep = 0;
+        quietColumns = 0;
+    }
+
+    /**
+     * Whether we can skip the FFT for the given column.  The signal must already contain the
+     * whole window for this column.
+     */
+    boolean isSilent(int column, SignalBuffer signal) {
+        int lastStep = column + stepSums.length;
+        // In case we weren't around for the first columns.
+        nextStep = Math.max(nextStep, column);
+        for (; nextStep<lastStep; nextStep++) {
+            long start = (long) nextStep * windowStepSize;
+            stepSums[nextStep % stepSums.length] =
+                fft.compressedSum(start, start + windowStepSize, signal);
+        }
+        // Adding these up again every time (instead of keeping a running total) means there's no
+        // rounding error to keep a total of silent steps from being exactly zero.
+        double sum = 0.0;
+        for (double stepSum : stepSums) {
+            sum += stepSum;
+        }
+        if (sum > threshold) {
+            quietColumns = 0;
+            return false;
+        }
+        quietColumns++;
+        return quietColumns > quietRun;
+    }
+}
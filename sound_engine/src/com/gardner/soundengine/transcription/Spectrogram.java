@@ -0,0 +1,123 @@
+package com.gardner.soundengine.transcription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A column-major store of spectrogram magnitudes.  Columns are packed into primitive float slabs
+ * of COLUMNS_PER_SLAB columns each, so a column costs 4 bytes per bin instead of a boxed Double
+ * and a list entry.
+ *
+ * Columns are indexed by window number.  By default every column is kept; if a retention is
+ * given, old slabs are reused once they fall out of range, so only (roughly) the most recent
+ * retainedColumns columns are available, starting at getFirstColumn().
+ *
+ * To read a column without copying, use getColumnData and getColumnOffset: the column's bins are
+ * getColumnData(c)[getColumnOffset(c) + bin], for bin from 0 to getColumnSize().  Don't hold on to
+ * these views across calls to addColumn if the spectrogram has a retention, as the slab may get
+ * reused.
+ */
+public class Spectrogram {
+    private static final int COLUMNS_PER_SLAB = 256;
+
+    private final int columnSize;
+    private final int maxSlabs;
+    private final List<float[]> slabs;
+    private int size;
+
+    /**
+     * Create a spectrogram that keeps every column added to it.
+     */
+    public Spectrogram(int columnSize) {
+        this(columnSize, -1);
+    }
+
+    /**
+     * Create a spectrogram that keeps at least the last retainedColumns columns, or every column
+     * if retainedColumns is negative.
+     */
+    public Spectrogram(int columnSize, int retainedColumns) {
+        this.columnSize = columnSize;
+        if (retainedColumns < 0) {
+            maxSlabs = -1;
+        } else {
+            // One extra slab, because the newest slab is usually only partly filled.
+            maxSlabs = (retainedColumns + COLUMNS_PER_SLAB - 1) / COLUMNS_PER_SLAB + 1;
+        }
+        slabs = new ArrayList<float[]>();
+        size = 0;
+    }
+
+    /**
+     * Append a column of magnitudes, returning its index.  Only the first getColumnSize() entries
+     * of magnitudes are used.
+     */
+    public int addColumn(double[] magnitudes) {
+        int column = size;
+        int slabNum = column / COLUMNS_PER_SLAB;
+        if (maxSlabs == -1 || slabNum < maxSlabs) {
+            if (slabNum == slabs.size()) {
+                slabs.add(new float[COLUMNS_PER_SLAB * columnSize]);
+            }
+        }
+        float[] data = getColumnData(column);
+        int offset = getColumnOffset(column);
+        for (int i=0; i<columnSize; i++) {
+            data[offset + i] = (float) magnitudes[i];
+        }
+        size++;
+        return column;
+    }
+
+    public float get(int column, int bin) {
+        checkColumn(column);
+        return getColumnData(column)[getColumnOffset(column) + bin];
+    }
+
+    /**
+     * The backing array holding the given column.  See the class comment.
+     */
+    public float[] getColumnData(int column) {
+        int slabNum = column / COLUMNS_PER_SLAB;
+        if (maxSlabs != -1) {
+            slabNum %= maxSlabs;
+        }
+        return slabs.get(slabNum);
+    }
+
+    /**
+     * The position of the given column's first bin in getColumnData(column).
+     */
+    public int getColumnOffset(int column) {
+        return (column % COLUMNS_PER_SLAB) * columnSize;
+    }
+
+    public int getColumnSize() {
+        return columnSize;
+    }
+
+    /**
+     * The total number of columns ever added, which is one past the last valid column index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The oldest column that is still retained.
+     */
+    public int getFirstColumn() {
+        if (maxSlabs == -1 || size == 0) {
+            return 0;
+        }
+        int lastSlabNum = (size - 1) / COLUMNS_PER_SLAB;
+        return Math.max(0, (lastSlabNum - maxSlabs + 1) * COLUMNS_PER_SLAB);
+    }
+
+    private void checkColumn(int column) {
+        if (column < getFirstColumn() || column >= size) {
+            throw new IndexOutOfBoundsException("Column " + column + " not retained (have " +
+                    getFirstColumn() + " to " + size + ")");
+        }
+    }
+}
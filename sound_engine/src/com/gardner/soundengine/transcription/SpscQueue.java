@@ -0,0 +1,92 @@
+package com.gardner.soundengine.transcription;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for passing items from exactly one producer thread to exactly one
+ * consumer thread.  Neither offer nor poll ever blocks: offer returns false if the queue is full,
+ * and poll returns null if it is empty, and it's up to the caller to decide what to do about it.
+ */
+public class SpscQueue<T> {
+    private final Object[] items;
+    private final int mask;
+    // head is the next position to read, and is only written by the consumer; tail is the next
+    // position to write, and is only written by the producer.
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    // Only written by the producer.
+    private volatile int maxDepth;
+
+    /**
+     * Create a queue holding at least minCapacity items (rounded up to a power of two).
+     */
+    public SpscQueue(int minCapacity) {
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        items = new Object[capacity];
+        mask = capacity - 1;
+        head = new AtomicLong(0);
+        tail = new AtomicLong(0);
+        maxDepth = 0;
+    }
+
+    /**
+     * Add item to the queue, returning false if the queue is full.  Only call this from the
+     * producer thread.
+     */
+    public boolean offer(T item) {
+        long t = tail.get();
+        int depth = (int) (t - head.get());
+        if (depth == items.length) {
+            return false;
+        }
+        items[(int) t & mask] = item;
+        // lazySet is enough here: it makes sure the write to items is visible before the new
+        // tail is, and the consumer doesn't need to see the new tail immediately.
+        tail.lazySet(t + 1);
+        if (depth + 1 > maxDepth) {
+            maxDepth = depth + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest item in the queue, or null if it's empty.  Only call this from
+     * the consumer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * The number of items currently in the queue.  This can be called from any thread, though the
+     * answer might be out of date by the time you look at it.
+     */
+    public int size() {
+        // Read head first: it can never pass the tail we read after it.
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    /**
+     * The largest number of items that have ever been in the queue at once.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getCapacity() {
+        return items.length;
+    }
+}
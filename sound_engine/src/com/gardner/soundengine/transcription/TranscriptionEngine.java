@@ -2,7 +2,11 @@ package com.gardner.soundengine.transcription;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.gardner.soundengine.common.*;
 import com.gardner.soundengine.microphone.*;
@@ -12,24 +16,65 @@ import com.gardner.soundengine.microphone.*;
  * audio signal.
  */
 public class TranscriptionEngine {
+    // A spectrogram column with less total magnitude than this is quiet enough that we don't
+    // think any note is being played.
+    private static final double NOTE_MAGNITUDE_THRESHOLD = 400; // PARAMTODO
+    // The lowest pitch the tuner listens for.  The tuner looks at two periods of this, so it sets
+    // how much audio goes into each reading: about 13 ms at 150 Hz, which is a bit below the
+    // violin's lowest string.
+    private static final double TUNER_MIN_FREQUENCY = 150; // PARAMTODO
+    // How many bytes we read from the microphone at a time; see the constructor.
+    private static final int BUFFER_SIZE = 1024;
+    // In tuner mode we read at most this many frames at a time (about 12 ms at 44100 Hz), as we
+    // can't show anything about audio we haven't read yet.
+    private static final int TUNER_BUFFER_FRAMES = 512; // PARAMTODO
 
     private Microphone microphone;
     private int sampleRate;
     private int bytesPerFrame;
+    private int decimationFactor;
+    private final Tuning tuning;
 
     private int bufferSize;
     private byte[] buffer;
     private int dataSize;
-    private List<Integer> fullSignal;
+    private short[] samples;
+    private Decimator decimator;
+    private short[] decimatedSamples;
+    private SignalBuffer fullSignal;
 
     int spectrogramWindowSize;
     int windowStepSize;
-    private List<List<Double>> spectrogram;
-
-    private FFT fft;
-    private int num_ffts;
-
+    private Spectrogram spectrogram;
+    // The window number of the next spectrogram column to compute.  This is separate from
+    // windowNum (the next column to look for notes in) because in a TranscriptionPipeline the two
+    // happen on different threads; when running serially they are always the same.
+    private int columnNum;
+    private int windowsPerSample;
+
+    // Transforms for spectrogram columns and for whole notes use separate FFT objects, so that
+    // they can run on different threads.
+    private FFT spectrogramFft;
+    private FFT noteFft;
+    private PitchDetector pitchDetector;
+    private int numSpectrogramFfts;
+    private SilenceGate silenceGate;
+    private int numSilentColumns;
+    // Reused for every spectrogram column, so computing one doesn't allocate anything.
+    private double[] columnMagnitudes;
+    // Only set in tuner mode; see setTunerMode.  The reading is replaced (never changed) after
+    // every spectrogram column, and is volatile so that other threads can poll it without locking.
+    private YinPitchDetector tunerDetector;
+    private volatile TunerReading tunerReading;
+
+    // Notes only get added every so often, but might be read from other threads at any time, so
+    // a copy-on-write list is just right here.
     private List<TranscribedNote> transcribedNotes;
+    private final List<TranscriptionListener> listeners =
+        new CopyOnWriteArrayList<TranscriptionListener>();
+    private int columnBatchSize;
+    // The first spectrogram column that hasn't been given to the listeners yet.
+    private int firstUnsentColumn;
     // A bunch of variables for transcribing notes, which pretty much always span buffer reads.
     private int windowNum;
     private boolean withinNote;
@@ -40,16 +85,84 @@ public class TranscriptionEngine {
     private int compareCount;
     private double[] averageVector;
     private double[] compareVector;
+    // The normalized spectrogram columns currently in compareVector (plus room for the one being
+    // added), indexed by window number modulo its length.  Each column is normalized just once,
+    // when it goes into compareVector, and reused when it moves over to averageVector.
+    private double[][] normalizedWindows;
+    // If we're comparing windows by semitone instead of by spectrogram bin, feature k is the sum
+    // of spectrogram bins featureBoundaries[k] to featureBoundaries[k+1] (exclusive), which are
+    // closest to MIDI note featureNotes[k]; otherwise these are null.
+    private int[] featureBoundaries;
+    private int[] featureNotes;
     private int minNoteSize;
     private int compareWindowSize;
     private double splitThreshold;
 
 
+    /**
+     * Create an engine that keeps only the last minute of raw audio and spectrogram, so it can
+     * listen for as long as you like.  If you want to draw the whole spectrogram afterwards, ask
+     * for it with the four argument constructor and limitSpectrogram set to false.
+     */
     public TranscriptionEngine(Microphone microphone) {
+        // A minute of audio is far longer than any single note we expect to see, and at 44100 Hz
+        // is only about 5 MB of samples.
+        this(microphone, 60.0);
+    }
+
+    /**
+     * Create an engine that only keeps the last retentionSeconds of raw audio and spectrogram
+     * around, so it runs in constant memory no matter how long it listens.  This needs to be at
+     * least as long as the longest note we want to get an accurate pitch for; notes that are
+     * longer than this have their pitch computed from the most recent retentionSeconds.
+     */
+    public TranscriptionEngine(Microphone microphone, double retentionSeconds) {
+        this(microphone, retentionSeconds, true, 1);
+    }
+
+    /**
+     * Create an engine, specifying everything.  retentionSeconds is as above, and if
+     * limitSpectrogram is false, the whole spectrogram is kept regardless.
+     *
+     * If decimationFactor is more than 1, the audio is low-pass filtered and downsampled by that
+     * factor before we do anything else with it, and the window sizes are scaled down to match, so
+     * that the spectrogram has the same time and frequency resolution (just fewer, useless, high
+     * frequency bins).  We don't listen for anything above B7 (about 4 kHz), so a factor of 4 on
+     * 44.1 kHz audio loses nothing we care about and makes the spectrogram about 4 times cheaper.
+     * The factor has to be a power of two, at most 8, and small enough that the decimator's
+     * filter keeps everything up to the tuning's highest note; 8 on 44.1 kHz audio would cut off
+     * at about 2.5 kHz, so it's rejected with an IllegalArgumentException instead of quietly
+     * losing the top of the range.
+     */
+    public TranscriptionEngine(Microphone microphone, double retentionSeconds,
+            boolean limitSpectrogram, int decimationFactor) {
+        this(microphone, retentionSeconds, limitSpectrogram, decimationFactor,
+                NoteUtil.getDefaultTuning());
+    }
+
+    /**
+     * As above, with the notes we listen for given by tuning instead of NoteUtil's default.
+     */
+    public TranscriptionEngine(Microphone microphone, double retentionSeconds,
+            boolean limitSpectrogram, int decimationFactor, Tuning tuning) {
         this.microphone = microphone;
+        this.tuning = tuning;
         microphone.initialize();
-        sampleRate = microphone.getSampleRate();
         bytesPerFrame = microphone.getBytesPerFrame();
+        if (decimationFactor < 1 || decimationFactor > 8
+                || Integer.bitCount(decimationFactor) != 1) {
+            throw new IllegalArgumentException("Unsupported decimation factor: "
+                    + decimationFactor);
+        }
+        if (decimationFactor > 1 && Decimator.getCutoffFrequency(decimationFactor,
+                    microphone.getSampleRate()) < tuning.getMaxFrequency()) {
+            throw new IllegalArgumentException(String.format("Decimating %d Hz audio by %d " +
+                        "would filter out notes up to %.0f Hz", microphone.getSampleRate(),
+                        decimationFactor, tuning.getMaxFrequency()));
+        }
+        this.decimationFactor = decimationFactor;
+        // Everything after the decimator works at the lower rate.
+        sampleRate = microphone.getSampleRate() / decimationFactor;
 
         // Note that this is different from the microphone buffer size, and should be considerably
         // smaller, so that we are sure to sample frequently enough to not miss data coming in from
@@ -57,25 +170,38 @@ public class TranscriptionEngine {
         // problem, but there are occasionally bursts where we're slow, and then need to catch up.
         // If this buffer size is too large relative to the mic's buffer size, the mic's buffer
         // will overflow during those busy bursts and we'll lose data.
-        bufferSize = 1024;
-        buffer = new byte[bufferSize];
-        dataSize = bufferSize / bytesPerFrame;
-        fullSignal = new ArrayList<Integer>();
+        if (decimationFactor > 1) {
+            decimator = new Decimator(decimationFactor, bytesPerFrame);
+        }
+        fullSignal = new SignalBuffer((int) (retentionSeconds * sampleRate));
 
         // With a sample rate of 44100, if we do windows in increments of 256 steps, we get a
         // resolution of 1s / 44100 * 256 ~= 6 ms.  32nd notes at 240 beats per minute take about
         // 31 milliseconds, and humans can distinguish sounds up to about 10 milliseconds.  So this
         // resolution should be plenty adequate.
-        windowStepSize = 256;
+        windowStepSize = 256 / decimationFactor;
         // We want to spectrogram to have a good enough resolution to differentiate half steps;
         // this is right about on the border of that.
-        spectrogramWindowSize = 2048;
-        spectrogram = new ArrayList<List<Double>>();
+        spectrogramWindowSize = 2048 / decimationFactor;
+        int retainedColumns = -1;
+        if (limitSpectrogram) {
+            retainedColumns = (int) (retentionSeconds * sampleRate / windowStepSize);
+        }
+        spectrogram = new Spectrogram(spectrogramWindowSize / 2, retainedColumns);
+
+        columnNum = 0;
+        setBufferSize(BUFFER_SIZE);
 
-        fft = new FFT(dataSize, spectrogramWindowSize);
-        num_ffts = 0;
+        spectrogramFft = createFft(dataSize / decimationFactor);
+        noteFft = createFft(dataSize / decimationFactor);
+        columnMagnitudes = new double[spectrogramWindowSize / 2];
+        pitchDetector = new FftPitchDetector(noteFft, sampleRate);
+        numSpectrogramFfts = 0;
+        numSilentColumns = 0;
 
-        transcribedNotes = new ArrayList<TranscribedNote>();
+        transcribedNotes = new CopyOnWriteArrayList<TranscribedNote>();
+        columnBatchSize = 1;
+        firstUnsentColumn = 0;
         windowNum = 0;
         withinNote = false;
         startWindow = -1;
@@ -90,12 +216,50 @@ public class TranscriptionEngine {
         // new note
         compareWindowSize = 5; // PARAMTODO
         splitThreshold = .8; // PARAMTODO
+        averageVector = new double[vectorSize];
+        compareVector = new double[vectorSize];
+        normalizedWindows = new double[compareWindowSize + 1][vectorSize];
+        setSilenceThreshold(0);
     }
 
+    /**
+     * Makes an FFT over spectrogram windows of up to maxDataSize samples.  Every FFT that goes into
+     * the spectrogram or the note finding has to come from here, so they all agree on magnitudes.
+     */
+    private FFT createFft(int maxDataSize) {
+        FFT fft = new FFT(maxDataSize, spectrogramWindowSize, bytesPerFrame, tuning);
+        // Transforms over fewer samples give proportionally smaller magnitudes; scaling them back
+        // up keeps all of our magnitude thresholds meaningful.
+        fft.setMagnitudeScale(decimationFactor);
+        return fft;
+    }
+
+    /**
+     * Read bufferSize bytes from the microphone at a time.
+     */
+    private void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        buffer = new byte[bufferSize];
+        dataSize = bufferSize / bytesPerFrame;
+        samples = new short[dataSize];
+        if (decimator != null) {
+            decimatedSamples = new short[dataSize / decimationFactor + 1];
+        }
+        windowsPerSample = dataSize / decimationFactor / windowStepSize;
+    }
+
+    /**
+     * The sample rate of the signal we analyze (and of getRawSignal()).  This is the microphone's
+     * sample rate divided by the decimation factor.
+     */
     public int getSampleRate() {
         return sampleRate;
     }
 
+    public Tuning getTuning() {
+        return tuning;
+    }
+
     public int getBufferSize() {
         return bufferSize;
     }
@@ -117,7 +281,109 @@ public class TranscriptionEngine {
     }
 
     public int getNumFfts() {
-        return num_ffts;
+        return numSpectrogramFfts + pitchDetector.getNumFfts();
+    }
+
+    /**
+     * The number of spectrogram columns we didn't compute an FFT for because the audio was
+     * silent.  These count as spectrogram columns, but not as FFTs.
+     */
+    public int getNumSilentColumns() {
+        return numSilentColumns;
+    }
+
+    /**
+     * The percentage of spectrogram columns that were skipped as silent.
+     */
+    public double getSilentColumnPercentage() {
+        if (columnNum == 0) {
+            return 0.0;
+        }
+        return 100.0 * numSilentColumns / columnNum;
+    }
+
+    /**
+     * Set how quiet a window has to be for us to skip its spectrogram FFT and just record a column
+     * of zeros.  See SilenceGate for what the threshold means; it defaults to 0, which only skips
+     * windows whose FFT would have been exactly zero anyway, and so doesn't change the output at
+     * all.  A negative threshold turns skipping off entirely.
+     */
+    public void setSilenceThreshold(double threshold) {
+        if (threshold < 0) {
+            silenceGate = null;
+        } else {
+            // Any note has definitely ended once we've seen this many silent windows in a row;
+            // see findNoteOnsetsFromSpectrogram and checkForNoteChange.
+            int quietRun = minNoteSize + 2;
+            silenceGate = new SilenceGate(spectrogramFft, windowStepSize, spectrogramWindowSize,
+                    threshold, quietRun);
+        }
+    }
+
+    /**
+     * Zero-pad the whole-note FFTs we use to refine pitch estimates up to a power of two.  This
+     * makes their cost much more predictable, as arbitrary note lengths otherwise fall into
+     * JTransforms' slow path for sizes that aren't powers of two.  See FFT.setZeroPadding.
+     */
+    public void setZeroPadNoteFfts(boolean zeroPad) {
+        noteFft.setZeroPadding(zeroPad);
+    }
+
+    /**
+     * Use detector to find the pitch of each note, instead of the default FftPitchDetector.  See
+     * PitchDetector for the choices.  This has to be set before transcription starts.
+     */
+    public void setPitchDetector(PitchDetector detector) {
+        pitchDetector = detector;
+    }
+
+    public PitchDetector getPitchDetector() {
+        return pitchDetector;
+    }
+
+    /**
+     * The FFT the default pitch detector uses, for making other detectors that need one.  It
+     * already has the magnitude scaling (and zero padding, if set) that this engine needs.
+     */
+    public FFT getNoteFft() {
+        return noteFft;
+    }
+
+    /**
+     * Turn on (or off) tuner mode.  In tuner mode, every time we compute a spectrogram column
+     * (every windowStepSize frames, or about 6 ms), we also find the pitch of the last few
+     * milliseconds of audio and publish it as a TunerReading, which any thread can pick up with
+     * getTunerReading().  This is on top of the usual note transcription, and only happens when
+     * we're listening live with sampleMic() or a TranscriptionPipeline, not in transcribeOffline.
+     *
+     * Tuner mode also reads from the microphone in smaller pieces (see TUNER_BUFFER_FRAMES), so
+     * that a new pitch shows up quickly; that's the biggest part of the delay with 8 bit audio.
+     * The notes come out the same either way, except maybe for the last fraction of a second of
+     * a file.  This has to be set before transcription starts (and before making a
+     * TranscriptionPipeline for this engine).
+     */
+    public void setTunerMode(boolean tunerMode) {
+        if (tunerMode) {
+            tunerDetector = new YinPitchDetector(sampleRate, tuning, TUNER_MIN_FREQUENCY);
+            setBufferSize(Math.min(BUFFER_SIZE, TUNER_BUFFER_FRAMES * bytesPerFrame));
+        } else {
+            tunerDetector = null;
+            setBufferSize(BUFFER_SIZE);
+        }
+        tunerReading = null;
+    }
+
+    public boolean isTunerMode() {
+        return tunerDetector != null;
+    }
+
+    /**
+     * The latest reading from tuner mode, or null if we don't have one yet.  This never blocks
+     * and is safe to call from any thread, as often as you want; it just returns whatever was
+     * published most recently.
+     */
+    public TunerReading getTunerReading() {
+        return tunerReading;
     }
 
     public void start() {
@@ -128,85 +394,312 @@ public class TranscriptionEngine {
         microphone.stop();
     }
 
-    public List<Integer> getRawSignal() {
+    public SignalBuffer getRawSignal() {
         return fullSignal;
     }
 
-    public List<List<Double>> getSpectrogram() {
+    public Spectrogram getSpectrogram() {
         return spectrogram;
     }
 
+    /**
+     * All of the notes we've found so far.  This is safe to read from any thread while the engine
+     * is running; the list only ever grows, and iterating over it sees the notes that were there
+     * when the iteration started.  To hear about notes as they're found, use a
+     * TranscriptionListener instead of checking this over and over.
+     */
     public List<TranscribedNote> getTranscribedNotes() {
         return transcribedNotes;
     }
 
+    /**
+     * Start telling listener about notes and spectrogram columns as we find them.  This can be
+     * called from any thread, at any time; a listener added while the engine is running starts
+     * with whatever comes next.
+     */
+    public void addTranscriptionListener(TranscriptionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTranscriptionListener(TranscriptionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Give listeners spectrogram columns batchSize at a time, instead of one at a time.  A batch
+     * also gets sent early whenever there's a note event (so that events stay in order) and when
+     * the audio runs out.
+     */
+    public void setColumnBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        columnBatchSize = batchSize;
+    }
+
     /**
      * Basic microphone sampling.  Reads bytes into this.buffer, performs some processing on the
      * audio input, then returns true if it was successful, false otherwise.
      */
     public boolean sampleMic() {
-        int bytes = microphone.sample(buffer);
-        copyBufferToData();
+        int bytes = readSamples(samples);
+        addSamples(samples);
         if (bytes == bufferSize) {
             processSample();
             return true;
         }
+        sendColumns();
         return false;
     }
 
-    private void copyBufferToData() {
+    /**
+     * Transcribe all of the rest of the microphone's audio, which had better be a file and not a
+     * live microphone.  This gives exactly the same results as calling sampleMic() until it
+     * returns false, but the spectrogram columns are computed in parallel on pool.  We read a block
+     * of audio at a time, compute all of its columns in parallel, then run the (inherently
+     * sequential) note segmentation over them, so memory use stays bounded for long files.
+     */
+    public void transcribeOffline(ForkJoinPool pool) {
+        // About six seconds of audio, but no more than half of the signal we keep around, because
+        // the whole block has to be in the signal buffer at once.
+        int maxBlockColumns = (fullSignal.getCapacity() / 2 - spectrogramWindowSize - dataSize)
+            / windowStepSize;
+        int blockColumns = Math.max(windowsPerSample, Math.min(1024, maxBlockColumns));
+        double[][] block = new double[blockColumns][vectorSize];
+        boolean[] silent = new boolean[blockColumns];
+        boolean done = false;
+        while (!done) {
+            // First read audio until we have a block's worth of columns, figuring out how many
+            // columns sampleMic would have computed after each read.  The silence gate has to see
+            // the columns in order, so it runs here too.
+            int firstColumn = columnNum;
+            int numColumns = 0;
+            while (numColumns + windowsPerSample <= blockColumns) {
+                int bytes = readSamples(samples);
+                addSamples(samples);
+                if (bytes != bufferSize) {
+                    done = true;
+                    break;
+                }
+                for (int i=0; i<windowsPerSample; i++) {
+                    long lastFrame = (long) (firstColumn + numColumns) * windowStepSize
+                        + spectrogramWindowSize - 1;
+                    if (lastFrame > fullSignal.size()) {
+                        break;
+                    }
+                    silent[numColumns] = silenceGate != null &&
+                        silenceGate.isSilent(firstColumn + numColumns, fullSignal);
+                    if (silent[numColumns]) {
+                        numSilentColumns++;
+                    } else {
+                        numSpectrogramFfts++;
+                    }
+                    numColumns++;
+                }
+            }
+            pool.invoke(new ColumnTask(firstColumn, 0, numColumns, block, silent));
+            columnNum += numColumns;
+            for (int i=0; i<numColumns; i++) {
+                addColumn(block[i]);
+            }
+        }
+        sendColumns();
+    }
+
+    /**
+     * Computes the spectrogram columns firstColumn + from to firstColumn + to (exclusive) into
+     * block[from] to block[to], splitting the work up recursively.  Columns marked as silent just
+     * get zeros.  FFT objects aren't thread safe, so each leaf task gets its own.
+     */
+    private class ColumnTask extends RecursiveAction {
+        private static final int COLUMNS_PER_TASK = 32;
+
+        private final int firstColumn;
+        private final int from;
+        private final int to;
+        private final double[][] block;
+        private final boolean[] silent;
+
+        ColumnTask(int firstColumn, int from, int to, double[][] block, boolean[] silent) {
+            this.firstColumn = firstColumn;
+            this.from = from;
+            this.to = to;
+            this.block = block;
+            this.silent = silent;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > COLUMNS_PER_TASK) {
+                int middle = (from + to) / 2;
+                invokeAll(new ColumnTask(firstColumn, from, middle, block, silent),
+                        new ColumnTask(firstColumn, middle, to, block, silent));
+                return;
+            }
+            FFT fft = createFft(spectrogramWindowSize);
+            for (int i=from; i<to; i++) {
+                if (silent[i]) {
+                    Arrays.fill(block[i], 0.0);
+                    continue;
+                }
+                long start = (long) (firstColumn + i) * windowStepSize;
+                fft.doFft(start, start + spectrogramWindowSize, fullSignal, block[i]);
+            }
+        }
+    }
+
+    private void processSample() {
+        for (int i=0; i<windowsPerSample; i++) {
+            if (!computeNextColumn(columnMagnitudes)) {
+                break;
+            }
+            addColumn(columnMagnitudes);
+        }
+    }
+
+    // The methods below split sampleMic into the three stages of processing: reading from the
+    // microphone, computing spectrogram columns, and finding notes in the spectrogram.
+    // TranscriptionPipeline runs each of these on its own thread.
+
+    /**
+     * Read a buffer's worth of audio from the microphone and decode it into out, which must have
+     * room for getDataSize() samples.  Returns the number of bytes the microphone gave us; if that
+     * is less than getBufferSize(), the audio is finished.
+     */
+    int readSamples(short[] out) {
+        int bytes = microphone.sample(buffer);
         if (bytesPerFrame == 1) {
             for (int i=0; i<bufferSize; i++) {
-                fullSignal.add((int) buffer[i]);
+                out[i] = buffer[i];
             }
         } else {
             ByteBuffer b = ByteBuffer.wrap(buffer);
             for (int i=0; i<dataSize; i++) {
                 if (bytesPerFrame == 2) {
-                    fullSignal.add((int) b.getShort());
+                    out[i] = b.getShort();
                 } else {
                     throw new RuntimeException("Unsupported bytes per frame: " + bytesPerFrame);
                 }
             }
         }
+        return bytes;
     }
 
-    private void processSample() {
-        int windowsPerSample = dataSize / windowStepSize;
-        for (int i=0; i<windowsPerSample; i++) {
-            int firstFrame = windowNum * windowStepSize;
-            int lastFrame = firstFrame + spectrogramWindowSize - 1;
-            if (lastFrame > fullSignal.size()) {
-                // This should happen on the first call to processSample, when we don't have enough
-                // data to do the full windowsPerSample number of spectrograms.
-                break;
+    void addSamples(short[] data) {
+        if (decimator == null) {
+            fullSignal.add(data, 0, dataSize);
+        } else {
+            int numSamples = decimator.decimate(data, dataSize, decimatedSamples);
+            fullSignal.add(decimatedSamples, 0, numSamples);
+        }
+    }
+
+    /**
+     * The most spectrogram columns we compute after each call to addSamples.
+     */
+    int getWindowsPerSample() {
+        return windowsPerSample;
+    }
+
+    /**
+     * Compute the magnitudes of the next spectrogram column into magnitudes, returning false (and
+     * doing nothing) if we don't have enough of the signal yet.
+     */
+    boolean computeNextColumn(double[] magnitudes) {
+        long start = (long) columnNum * windowStepSize;
+        long lastFrame = start + spectrogramWindowSize - 1;
+        if (lastFrame > fullSignal.size()) {
+            // This should happen on the first call to processSample, when we don't have enough
+            // data to do the full windowsPerSample number of spectrograms.
+            return false;
+        }
+        long end = start + spectrogramWindowSize;
+        boolean silent = silenceGate != null && silenceGate.isSilent(columnNum, fullSignal);
+        if (silent) {
+            Arrays.fill(magnitudes, 0, vectorSize, 0.0);
+            numSilentColumns++;
+        } else {
+            spectrogramFft.doFft(start, end, fullSignal, magnitudes);
+            numSpectrogramFfts++;
+        }
+        if (tunerDetector != null) {
+            updateTuner(start, end, silent ? null : magnitudes);
+        }
+        columnNum++;
+        return true;
+    }
+
+    /**
+     * Find the pitch at the very end of the window from start to end, which we just computed
+     * the spectrogram column for, and publish it.  We only use the column to see if anything is
+     * being played at all; the pitch comes from YIN on the newest samples, which is both cheaper
+     * and much quicker to react than anything we could get out of a 46 ms FFT window.
+     */
+    private void updateTuner(long start, long end, double[] magnitudes) {
+        double frequency = 0.0;
+        if (magnitudes != null) {
+            double totalMagnitude = 0.0;
+            for (int i=0; i<vectorSize; i++) {
+                totalMagnitude += magnitudes[i];
+            }
+            if (totalMagnitude > NOTE_MAGNITUDE_THRESHOLD) {
+                long first = Math.max(start, end - tunerDetector.getWindowSize());
+                frequency = tunerDetector.detectPitch(fullSignal, first, end, 0.0);
             }
-            computeSpectrogram();
-            findNoteOnsetsFromSpectrogram();
-            windowNum++;
+        }
+        tunerReading = new TunerReading(frequency, tuning, end, end / (double) sampleRate);
+    }
+
+    /**
+     * Add the next column, computed by computeNextColumn, to the spectrogram and look for notes in
+     * it.
+     */
+    void addColumn(double[] magnitudes) {
+        spectrogram.addColumn(magnitudes);
+        if (spectrogram.size() - firstUnsentColumn >= columnBatchSize) {
+            sendColumns();
+        }
+        findNoteOnsetsFromSpectrogram();
+        windowNum++;
+    }
+
+    /**
+     * Give the listeners all of the columns they haven't seen yet.  If there aren't any listeners,
+     * we just skip over the columns, so that anyone added later doesn't get a pile of old ones.
+     */
+    void sendColumns() {
+        int endWindow = spectrogram.size();
+        int firstWindow = Math.max(firstUnsentColumn, spectrogram.getFirstColumn());
+        firstUnsentColumn = endWindow;
+        if (firstWindow >= endWindow) {
+            return;
+        }
+        for (TranscriptionListener listener : listeners) {
+            listener.columnsAdded(spectrogram, firstWindow, endWindow);
         }
     }
 
-    private void computeSpectrogram() {
-        int start = windowNum*windowStepSize;
-        int end = start + spectrogramWindowSize;
-        double[] magnitudeArray = fft.doFft(start, end, fullSignal);
-        num_ffts++;
-        List<Double> column = new ArrayList<Double>();
-        for (double mag : magnitudeArray) {
-            column.add(mag);
+    private void addNote(TranscribedNote note) {
+        transcribedNotes.add(note);
+        if (listeners.isEmpty()) {
+            return;
+        }
+        sendColumns();
+        for (TranscriptionListener listener : listeners) {
+            listener.noteEnded(note);
         }
-        spectrogram.add(column);
     }
 
     private void findNoteOnsetsFromSpectrogram() {
+        float[] column = spectrogram.getColumnData(windowNum);
+        int offset = spectrogram.getColumnOffset(windowNum);
         double total_mag = 0.0;
-        for (int j=0; j<spectrogramWindowSize/2; j++) {
-            total_mag += spectrogram.get(windowNum).get(j);
+        for (int j=0; j<vectorSize; j++) {
+            total_mag += column[offset + j];
         }
         double seconds = windowNum * (double) windowStepSize / sampleRate;
         checkForNoteChange(windowNum);
-        if (total_mag > 400) { // PARAMTODO
+        if (total_mag > NOTE_MAGNITUDE_THRESHOLD) {
             if (!withinNote) {
                 startNote(windowNum);
             }
@@ -221,7 +714,7 @@ public class TranscriptionEngine {
                     if (endWindow - startWindow >= minNoteSize) {
                         TranscribedNote note = getNoteFromSpectrogramWindow(startWindow, endWindow);
                         if (note != null) {
-                            transcribedNotes.add(note);
+                            addNote(note);
                         }
                     }
                     withinNote = false;
@@ -235,8 +728,16 @@ public class TranscriptionEngine {
         startWindow = window;
         averageCount = 0;
         compareCount = 0;
-        averageVector = new double[vectorSize];
-        compareVector = new double[vectorSize];
+        Arrays.fill(averageVector, 0.0);
+        Arrays.fill(compareVector, 0.0);
+        if (!listeners.isEmpty()) {
+            sendColumns();
+            double startTime = ((long) window * windowStepSize + spectrogramWindowSize / 2)
+                / (double) sampleRate;
+            for (TranscriptionListener listener : listeners) {
+                listener.noteStarted(window, startTime);
+            }
+        }
     }
 
     private void checkForNoteChange(int window) {
@@ -253,64 +754,137 @@ public class TranscriptionEngine {
         // We only add the currentWindow to the averageVector and subtract it from the
         // compareVector if we've seen compareWindowSize windows already.  This means we're filling
         // up compareVector first, even though there's nothing to compare it to at the beginning.
+        //
+        // All of the updates (and the dot product) happen in a single pass over the vectors, and
+        // window gets normalized along the way, multiplying by reciprocals instead of dividing.
+        // This is by far the most work we do per window outside of the FFT, so it's worth it.
+        double[] newVector = normalizedWindows[window % normalizedWindows.length];
+        // A window with nothing in it at all (which is what we get for every window the silence
+        // gate skips) has no direction to compare, so we leave it as all zeros, the same as
+        // silence, instead of dividing by zero and filling both vectors with NaNs.
+        double norm = loadFeatures(window, newVector);
+        double inverseNorm = norm > 0 ? 1.0 / norm : 0.0;
+        int size = newVector.length;
+        double dotProduct = 0.0;
         if (compareCount == compareWindowSize) {
-            double[] vector = getNormalizedSpectrogramVector(currentWindow);
-            for (int i=0; i<vectorSize; i++) {
-                averageVector[i] += (vector[i] - averageVector[i]) / (averageCount + 1);
-                compareVector[i] -= (vector[i] - compareVector[i]) / (compareCount);
+            double[] oldVector = normalizedWindows[currentWindow % normalizedWindows.length];
+            double averageWeight = 1.0 / (averageCount + 1);
+            double compareWeight = 1.0 / compareCount;
+            for (int i=0; i<size; i++) {
+                averageVector[i] += (oldVector[i] - averageVector[i]) * averageWeight;
+                compareVector[i] -= (oldVector[i] - compareVector[i]) * compareWeight;
+                newVector[i] *= inverseNorm;
+                compareVector[i] += (newVector[i] - compareVector[i]) * compareWeight;
+                dotProduct += averageVector[i] * compareVector[i];
             }
             averageCount++;
-            compareCount--;
-        }
-        // We always want to add window to the compareVector.
-        double[] vector = getNormalizedSpectrogramVector(window);
-        for (int j=0; j<vectorSize; j++) {
-            compareVector[j] += (vector[j] - compareVector[j]) / (compareCount + 1);
+        } else {
+            double compareWeight = 1.0 / (compareCount + 1);
+            for (int i=0; i<size; i++) {
+                newVector[i] *= inverseNorm;
+                compareVector[i] += (newVector[i] - compareVector[i]) * compareWeight;
+                dotProduct += averageVector[i] * compareVector[i];
+            }
+            compareCount++;
         }
-        compareCount++;
         if (averageCount > minNoteSize) {
-            if (dotProduct(averageVector, compareVector) < splitThreshold) {
+            if (dotProduct < splitThreshold) {
                 // We found a significant change; start a new note
                 TranscribedNote note = getNoteFromSpectrogramWindow(startWindow, currentWindow);
                 if (note != null) {
-                    transcribedNotes.add(note);
+                    addNote(note);
                 }
                 // To be sure to use all of the windows, we need to do some bookkeeping here,
                 // switching what was compareVector to the beginnings of a new averageVector.
                 // The next time checkForNoteChange is called, it will look at the window after
                 // window, and because compareCount will be 0, things will work just fine.
-                double[] tmpVector = new double[vectorSize];
-                System.arraycopy(compareVector, 0, tmpVector, 0, vectorSize);
+                double[] newAverageVector = compareVector;
+                compareVector = averageVector;
                 startNote(currentWindow + 1);
-                System.arraycopy(tmpVector, 0, averageVector, 0, vectorSize);
+                averageVector = newAverageVector;
             }
         }
     }
 
-    private double[] getNormalizedSpectrogramVector(int window) {
-        List<Double> v = spectrogram.get(window);
-        double[] vector = new double[v.size()];
+    /**
+     * Put the features we compare windows by into features, returning their L2 norm.  Normally
+     * this is just the window's spectrogram column, but with semitone features on, each feature is
+     * the sum of the bins closest to one note.
+     */
+    private double loadFeatures(int window, double[] features) {
+        float[] column = spectrogram.getColumnData(window);
+        int offset = spectrogram.getColumnOffset(window);
         double norm = 0.0;
-        for (int i=0; i<v.size(); i++) {
-            vector[i] = v.get(i);
-            norm += vector[i] * vector[i];
+        if (featureBoundaries == null) {
+            for (int i=0; i<vectorSize; i++) {
+                features[i] = column[offset + i];
+                norm += features[i] * features[i];
+            }
+        } else {
+            for (int k=0; k<features.length; k++) {
+                double sum = 0.0;
+                for (int bin=featureBoundaries[k]; bin<featureBoundaries[k+1]; bin++) {
+                    sum += column[offset + bin];
+                }
+                features[k] = sum;
+                norm += sum * sum;
+            }
         }
-        norm = Math.sqrt(norm);
-        for (int j=0; j<v.size(); j++) {
-            vector[j] /= norm;
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Compare windows by how much energy is near each note in our tuning, instead of by every
+     * spectrogram bin, when looking for note changes.  With the usual window size there are only
+     * about 60 of those (most of the bins are far above any note we listen for), so this makes
+     * segmentation several times cheaper.  This has to be set before transcription starts.
+     */
+    public void setUseSemitoneFeatures(boolean useSemitoneFeatures) {
+        int size = vectorSize;
+        featureBoundaries = null;
+        featureNotes = null;
+        if (useSemitoneFeatures) {
+            computeFeatures();
+            size = featureNotes.length;
         }
-        return vector;
+        averageVector = new double[size];
+        compareVector = new double[size];
+        normalizedWindows = new double[compareWindowSize + 1][size];
     }
 
-    private double dotProduct(double[] v1, double[] v2) {
-        if (v1.length != v2.length) {
-            throw new RuntimeException("Vectors must be same length for dot product");
+    /**
+     * Group the spectrogram bins by the note they're closest to, leaving out anything outside of
+     * our tuning's range.  The bins are in order of frequency, so each group is a contiguous
+     * range; notes too low to have a bin of their own just don't get a feature.
+     */
+    private void computeFeatures() {
+        List<Integer> boundaries = new ArrayList<Integer>();
+        List<Integer> notes = new ArrayList<Integer>();
+        int end = -1;
+        for (int bin=1; bin<vectorSize; bin++) {
+            double freq = bin * (double) sampleRate / spectrogramWindowSize;
+            int note = tuning.findClosestMidiNote(freq);
+            if (note == -1) {
+                continue;
+            }
+            if (notes.isEmpty() || note != notes.get(notes.size() - 1)) {
+                boundaries.add(bin);
+                notes.add(note);
+            }
+            end = bin + 1;
+        }
+        if (notes.isEmpty()) {
+            throw new RuntimeException("No spectrogram bins fall within the tuning's range");
         }
-        double sum = 0.0;
-        for (int i=0; i<v1.length; i++) {
-            sum += v1[i] * v2[i];
+        boundaries.add(end);
+        featureBoundaries = new int[boundaries.size()];
+        for (int i=0; i<boundaries.size(); i++) {
+            featureBoundaries[i] = boundaries.get(i);
+        }
+        featureNotes = new int[notes.size()];
+        for (int i=0; i<notes.size(); i++) {
+            featureNotes[i] = notes.get(i);
         }
-        return sum;
     }
 
     /**
@@ -318,40 +892,77 @@ public class TranscriptionEngine {
      * segment into a TranscribedNote.
      *
      * We first look at the spectrogram (averageVector, specifically - this needs to be called in
-     * the context of checkForNoteChange) to get an idea of where the pitch probably is, then we do
-     * an FFT on the whole signal to find the exact pitch.
+     * the context of checkForNoteChange) to get an idea of where the pitch probably is, then we let
+     * the pitch detector (normally an FFT on the whole note) find the exact pitch.
      */
     private TranscribedNote getNoteFromSpectrogramWindow(int startWindow, int endWindow) {
+        double likely_pitch;
+        if (featureNotes == null) {
+            likely_pitch = guessPitchFromSpectrogram();
+        } else {
+            likely_pitch = guessPitchFromFeatures();
+        }
+        if (likely_pitch == 0.0) {
+            return null;
+        }
+
+        // Use as the starting and ending frames the halfway points for their respective windows
+        long startFrame = (long) startWindow * windowStepSize + spectrogramWindowSize / 2;
+        long endFrame = (long) endWindow * windowStepSize + spectrogramWindowSize / 2;
+        // If the note is longer than what we've kept of the signal, just use the part we have.
+        long signalStartFrame = Math.max(startFrame, fullSignal.getFirstIndex());
+        double pitch = pitchDetector.detectPitch(fullSignal, signalStartFrame, endFrame,
+                likely_pitch);
+        if (pitch == 0.0) {
+            return null;
+        }
+
+        double startTime = startFrame / (double) sampleRate;
+        double endTime = endFrame / (double) sampleRate;
+        return new TranscribedNote(startWindow, endWindow, startTime, endTime, pitch);
+    }
+
+    /**
+     * Guess a note's pitch from averageVector as a spectrogram column: the lowest strong peak,
+     * which should be the fundamental.
+     */
+    private double guessPitchFromSpectrogram() {
         double max = .1;
         int max_index = 0;
         // We start at 4 here to ignore the peak that's normally at 0 - that gets us to a frequency
         // of something like 80Hz, which should be high enough for most instruments.
+        double maxFrequency = tuning.getMaxFrequency();
         for (int i=4; i<averageVector.length; i++) {
             double freq = i * sampleRate / spectrogramWindowSize;
-            if (freq > NoteUtil.getMaxFrequency()) continue;
+            if (freq > maxFrequency) continue;
             if (averageVector[i] > max) {
                 if (max_index > 0 && i - max_index > 2) break;
                 max = averageVector[i];
                 max_index = i;
             }
         }
-        double likely_pitch = max_index * sampleRate / spectrogramWindowSize;
-        if (likely_pitch == 0.0) {
-            return null;
-        }
+        return max_index * sampleRate / spectrogramWindowSize;
+    }
 
-        // Use as the starting and ending frames the halfway points for their respective windows
-        int startFrame = startWindow * windowStepSize + spectrogramWindowSize / 2;
-        int endFrame = endWindow * windowStepSize + spectrogramWindowSize / 2;
-        double[] magnitudeArray = fft.doFft(startFrame, endFrame, fullSignal);
-        num_ffts++;
-        double pitch = fft.getPeakCloseToPitch(magnitudeArray, likely_pitch, sampleRate);
-        if (pitch == 0.0) {
-            return null;
+    /**
+     * The same thing, but with averageVector as semitone features, so the guess is the frequency
+     * of a note instead of a spectrogram bin.
+     */
+    private double guessPitchFromFeatures() {
+        double max = .1;
+        int max_index = -1;
+        // Skipping everything below bin 4, as above.
+        for (int k=0; k<averageVector.length; k++) {
+            if (featureBoundaries[k] < 4) continue;
+            if (averageVector[k] > max) {
+                if (max_index >= 0 && featureNotes[k] - featureNotes[max_index] > 2) break;
+                max = averageVector[k];
+                max_index = k;
+            }
         }
-
-        double startTime = startFrame / (double) sampleRate;
-        double endTime = endFrame / (double) sampleRate;
-        return new TranscribedNote(startWindow, endWindow, startTime, endTime, pitch);
+        if (max_index == -1) {
+            return 0.0;
+        }
+        return tuning.getMidiFrequency(featureNotes[max_index]);
     }
 }
@@ -0,0 +1,37 @@
+package com.gardner.soundengine.transcription;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Something that wants to hear about what a TranscriptionEngine finds as it finds it, instead of
+ * going back over getTranscribedNotes() and the spectrogram after every buffer.  Add one with
+ * TranscriptionEngine.addTranscriptionListener.
+ *
+ * All of these are called on whatever thread is doing the engine's note finding (the caller of
+ * sampleMic() or transcribeOffline(), or a TranscriptionPipeline's segmentation thread), one at a
+ * time and in the order the engine got to them: a note event only comes after every spectrogram
+ * column up to the window where it was found.  They hold up transcription while they run, so
+ * anything slow should be handed off to another thread.
+ */
+public interface TranscriptionListener {
+    /**
+     * Spectrogram columns firstWindow to endWindow (exclusive) have been added to spectrogram.
+     * How many come at once depends on TranscriptionEngine.setColumnBatchSize.  These should only
+     * be read from inside this call; the engine keeps writing new columns after it returns, and
+     * if it only keeps a limited amount of spectrogram, old ones get overwritten.
+     */
+    public void columnsAdded(Spectrogram spectrogram, int firstWindow, int endWindow);
+
+    /**
+     * Something that might be a note started at startWindow (startTime seconds into the audio).
+     * We don't know its pitch yet, and not everything that starts ends up as a note: if it turns
+     * out to be too short or to have no pitch, there's no noteEnded for it, and the next event
+     * is just another noteStarted.
+     */
+    public void noteStarted(int startWindow, double startTime);
+
+    /**
+     * A note has finished, and has been added to the engine's transcribed notes.
+     */
+    public void noteEnded(TranscribedNote note);
+}
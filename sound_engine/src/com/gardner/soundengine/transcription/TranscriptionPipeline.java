@@ -0,0 +1,276 @@
+package com.gardner.soundengine.transcription;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a TranscriptionEngine as a pipeline of three threads, instead of doing everything on the
+ * caller's thread with sampleMic().  The first thread reads from the microphone, the second
+ * computes spectrogram columns, and the third finds notes in the spectrogram.  The stages are
+ * connected by bounded lock-free queues (SpscQueue), and buffers are passed back to the earlier
+ * stage once they're used, so nothing gets allocated in the steady state.
+ *
+ * When listening to a real microphone, the capture thread never waits on analysis: if the
+ * analysis falls so far behind that the queue of audio chunks is full, the chunk is dropped (and
+ * counted in getDroppedChunks()) rather than letting the microphone's buffer overflow.  When
+ * reading from a file, which is much faster than real time, the capture thread waits instead.
+ * The later stages always just wait when their output queue is full.
+ *
+ * The engine's spectrogram and signal are written by the pipeline threads, so don't look at them
+ * until join() has returned.  Its list of notes is safe to read at any time, but to follow along
+ * while the pipeline runs, add a TranscriptionListener to the engine; that gets called on the
+ * segmentation thread.  The engine produces exactly the same notes as it would with sampleMic(),
+ * as long as no chunks were dropped.
+ */
+public class TranscriptionPipeline {
+    // About six seconds of audio, at 1024 samples per chunk and 44100 Hz.
+    private static final int CHUNK_QUEUE_SIZE = 256; // PARAMTODO
+    // About a third of a second of spectrogram columns.
+    private static final int COLUMN_QUEUE_SIZE = 64; // PARAMTODO
+    // How long a stage sleeps when it has nothing to do (or nowhere to put its output).  A window
+    // step is almost 6 ms, so this adds very little latency.
+    private static final long IDLE_NANOS = 200000;
+
+    private static final double[] END_OF_COLUMNS = new double[0];
+
+    private final TranscriptionEngine engine;
+    private final boolean realTime;
+
+    private final SpscQueue<Chunk> chunks;
+    private final SpscQueue<Chunk> freeChunks;
+    private final SpscQueue<double[]> columns;
+    private final SpscQueue<double[]> freeColumns;
+
+    private final Thread captureThread;
+    private final Thread spectrogramThread;
+    private final Thread segmentationThread;
+
+    private volatile boolean running;
+    private volatile int droppedChunks;
+    private volatile Throwable failure;
+
+    /**
+     * Create a pipeline for an engine listening to a real microphone.
+     */
+    public TranscriptionPipeline(TranscriptionEngine engine) {
+        this(engine, true);
+    }
+
+    /**
+     * Create a pipeline for the given engine.  If realTime is false (e.g., the engine is reading
+     * from a file), no audio is ever dropped; the capture stage waits for the analysis instead.
+     */
+    public TranscriptionPipeline(TranscriptionEngine engine, boolean realTime) {
+        this.engine = engine;
+        this.realTime = realTime;
+        chunks = new SpscQueue<Chunk>(CHUNK_QUEUE_SIZE);
+        freeChunks = new SpscQueue<Chunk>(CHUNK_QUEUE_SIZE);
+        columns = new SpscQueue<double[]>(COLUMN_QUEUE_SIZE);
+        freeColumns = new SpscQueue<double[]>(COLUMN_QUEUE_SIZE);
+        captureThread = new CaptureStage();
+        spectrogramThread = new SpectrogramStage();
+        segmentationThread = new SegmentationStage();
+        running = false;
+        droppedChunks = 0;
+    }
+
+    public TranscriptionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Start the microphone and all three stages.
+     */
+    public void start() {
+        running = true;
+        engine.start();
+        segmentationThread.start();
+        spectrogramThread.start();
+        captureThread.start();
+    }
+
+    /**
+     * Ask the pipeline to stop listening.  Audio that has already been read still gets processed;
+     * call join() to wait for that to finish.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Wait until all of the audio has been processed, either because the microphone ran out (as
+     * with a file) or because stop() was called.  If any stage failed, this throws the exception
+     * that it failed with.
+     */
+    public void join() throws InterruptedException {
+        captureThread.join();
+        spectrogramThread.join();
+        segmentationThread.join();
+        if (failure != null) {
+            throw new RuntimeException("Transcription pipeline failed", failure);
+        }
+    }
+
+    /**
+     * The number of audio chunks that have been read from the microphone but not yet turned into
+     * spectrogram columns.
+     */
+    public int getCaptureQueueDepth() {
+        return chunks.size();
+    }
+
+    public int getMaxCaptureQueueDepth() {
+        return chunks.getMaxDepth();
+    }
+
+    /**
+     * The number of spectrogram columns that have been computed but not yet looked at for notes.
+     */
+    public int getSpectrogramQueueDepth() {
+        return columns.size();
+    }
+
+    public int getMaxSpectrogramQueueDepth() {
+        return columns.getMaxDepth();
+    }
+
+    /**
+     * The number of audio chunks the capture stage had to throw away because the spectrogram
+     * stage was too far behind.
+     */
+    public int getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    /**
+     * Sleep briefly while waiting on another stage.  Returns false if some stage has failed, in
+     * which case the caller should give up.
+     */
+    private boolean idle() {
+        LockSupport.parkNanos(IDLE_NANOS);
+        return failure == null;
+    }
+
+    private static class Chunk {
+        final short[] samples;
+        // If true, this is the last chunk, and it should be added to the signal but not analyzed,
+        // just like the last buffer in TranscriptionEngine.sampleMic.
+        boolean last;
+
+        Chunk(int size) {
+            samples = new short[size];
+        }
+    }
+
+    private abstract class Stage extends Thread {
+        Stage(String name) {
+            super(name);
+        }
+
+        public void run() {
+            try {
+                runStage();
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        abstract void runStage();
+    }
+
+    private class CaptureStage extends Stage {
+        CaptureStage() {
+            super("transcription-capture");
+        }
+
+        void runStage() {
+            while (failure == null) {
+                Chunk chunk = freeChunks.poll();
+                if (chunk == null) {
+                    chunk = new Chunk(engine.getDataSize());
+                }
+                int bytes = engine.readSamples(chunk.samples);
+                chunk.last = bytes != engine.getBufferSize() || !running;
+                if (chunk.last || !realTime) {
+                    // We have to get the end of the audio through, but after this there's no more
+                    // capturing to do, so waiting is fine.  And if we're not in real time, there's
+                    // no microphone buffer to overflow.
+                    while (!chunks.offer(chunk)) {
+                        if (!idle()) break;
+                    }
+                    if (chunk.last) {
+                        break;
+                    }
+                    continue;
+                }
+                if (!chunks.offer(chunk)) {
+                    droppedChunks++;
+                }
+            }
+            engine.stop();
+        }
+    }
+
+    private class SpectrogramStage extends Stage {
+        SpectrogramStage() {
+            super("transcription-spectrogram");
+        }
+
+        void runStage() {
+            int columnSize = engine.getSpectrogramWindowSize() / 2;
+            double[] column = null;
+            while (true) {
+                Chunk chunk = chunks.poll();
+                if (chunk == null) {
+                    if (!idle()) return;
+                    continue;
+                }
+                engine.addSamples(chunk.samples);
+                boolean last = chunk.last;
+                freeChunks.offer(chunk);
+                if (last) {
+                    break;
+                }
+                for (int i=0; i<engine.getWindowsPerSample(); i++) {
+                    if (column == null) {
+                        column = freeColumns.poll();
+                        if (column == null) {
+                            column = new double[columnSize];
+                        }
+                    }
+                    if (!engine.computeNextColumn(column)) {
+                        break;
+                    }
+                    while (!columns.offer(column)) {
+                        if (!idle()) return;
+                    }
+                    column = null;
+                }
+            }
+            while (!columns.offer(END_OF_COLUMNS)) {
+                if (!idle()) return;
+            }
+        }
+    }
+
+    private class SegmentationStage extends Stage {
+        SegmentationStage() {
+            super("transcription-segmentation");
+        }
+
+        void runStage() {
+            while (true) {
+                double[] column = columns.poll();
+                if (column == null) {
+                    if (!idle()) return;
+                    continue;
+                }
+                if (column == END_OF_COLUMNS) {
+                    engine.sendColumns();
+                    break;
+                }
+                engine.addColumn(column);
+                freeColumns.offer(column);
+            }
+        }
+    }
+}
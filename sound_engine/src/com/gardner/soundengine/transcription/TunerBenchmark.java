@@ -0,0 +1,245 @@
+package com.gardner.soundengine.transcription;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.gardner.soundengine.common.*;
+
+import com.gardner.soundengine.microphone.*;
+
+/**
+ * Measures how long tuner mode takes to show a new pitch.  We play a synthetic melody through a
+ * fake microphone that hands out audio as if it were being recorded (one buffer at a time), poll
+ * the engine's TunerReading after each buffer like a UI would, and for each note change measure
+ * the time from the change to the first reading within TOLERANCE_CENTS of the new pitch.
+ *
+ * The audio side of that is counted in frames (a buffer can't be read until its last frame has
+ * been recorded), and the processing side with System.nanoTime(), so the total is what a real
+ * microphone would see, minus whatever buffering the sound hardware itself does.  Run it with
+ * "ant benchmark-tuner".
+ *
+ * Since we have a melody lying around anyway, we also check that transcribeOffline gives exactly
+ * what sampleMic() does at each decimation factor, spectrogram and notes both.
+ */
+public class TunerBenchmark {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_NOTES = 400;
+    private static final double TOLERANCE_CENTS = 10;
+    // G3 (the violin's lowest note) to A6.
+    private static final int MIN_MIDI_NOTE = 55;
+    private static final int MAX_MIDI_NOTE = 93;
+
+    public static void main(String[] args) {
+        // Give the JIT a chance to compile everything before we start timing.
+        runBenchmark(2, 1, false);
+        for (int bytesPerFrame = 1; bytesPerFrame <= 2; bytesPerFrame++) {
+            runBenchmark(bytesPerFrame, 1, true);
+            runBenchmark(bytesPerFrame, 4, true);
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        for (int bytesPerFrame = 1; bytesPerFrame <= 2; bytesPerFrame++) {
+            checkOffline(bytesPerFrame, 1, pool);
+            checkOffline(bytesPerFrame, 4, pool);
+        }
+        pool.shutdown();
+    }
+
+    private static void checkOffline(int bytesPerFrame, int decimationFactor, ForkJoinPool pool) {
+        TranscriptionEngine serial = new TranscriptionEngine(
+                new MelodyMicrophone(bytesPerFrame, new Random(0)), 10.0, false, decimationFactor);
+        serial.start();
+        while (serial.sampleMic()) {
+        }
+        serial.stop();
+        TranscriptionEngine offline = new TranscriptionEngine(
+                new MelodyMicrophone(bytesPerFrame, new Random(0)), 10.0, false, decimationFactor);
+        offline.start();
+        offline.transcribeOffline(pool);
+        offline.stop();
+
+        int differentColumns = 0;
+        Spectrogram a = serial.getSpectrogram();
+        Spectrogram b = offline.getSpectrogram();
+        int columns = Math.min(a.size(), b.size());
+        for (int i=0; i<columns; i++) {
+            for (int j=0; j<a.getColumnSize(); j++) {
+                if (a.get(i, j) != b.get(i, j)) {
+                    differentColumns++;
+                    break;
+                }
+            }
+        }
+        List<TranscribedNote> serialNotes = serial.getTranscribedNotes();
+        List<TranscribedNote> offlineNotes = offline.getTranscribedNotes();
+        int differentNotes = Math.abs(serialNotes.size() - offlineNotes.size());
+        for (int i=0; i<Math.min(serialNotes.size(), offlineNotes.size()); i++) {
+            TranscribedNote x = serialNotes.get(i);
+            TranscribedNote y = offlineNotes.get(i);
+            if (x.getStartWindow() != y.getStartWindow() || x.getEndWindow() != y.getEndWindow()
+                    || x.getPitch() != y.getPitch()) {
+                differentNotes++;
+            }
+        }
+        boolean same = a.size() == b.size() && differentColumns == 0 && differentNotes == 0;
+        System.out.println(String.format("%d bit samples, decimation %d: offline %s serial " +
+                    "(%d vs %d columns, %d differ; %d vs %d notes, %d differ)",
+                    8 * bytesPerFrame, decimationFactor, same ? "matches" : "DOES NOT MATCH",
+                    a.size(), b.size(), differentColumns, serialNotes.size(),
+                    offlineNotes.size(), differentNotes));
+    }
+
+    private static void runBenchmark(int bytesPerFrame, int decimationFactor, boolean print) {
+        MelodyMicrophone microphone = new MelodyMicrophone(bytesPerFrame, new Random(0));
+        TranscriptionEngine engine = new TranscriptionEngine(microphone, 10.0, true,
+                decimationFactor);
+        engine.setTunerMode(true);
+        double[] latencies = new double[NUM_NOTES];
+        int numLatencies = 0;
+        int missed = 0;
+        long processingNanos = 0;
+        int numBuffers = 0;
+        // The first note isn't a change, so we start measuring with the second.
+        int nextNote = 1;
+        engine.start();
+        while (engine.sampleMic()) {
+            long now = System.nanoTime();
+            processingNanos += now - microphone.lastSampleNanos;
+            numBuffers++;
+            int note = microphone.getNoteAt(microphone.framesDelivered - 1);
+            while (nextNote < note) {
+                // That note ended before we ever heard it right.
+                missed++;
+                nextNote++;
+            }
+            TunerReading reading = engine.getTunerReading();
+            if (reading == null || note < nextNote || reading.getFrequency() == 0) {
+                continue;
+            }
+            double cents = 1200 * Math.log(reading.getFrequency() / microphone.frequencies[note])
+                / Math.log(2);
+            if (Math.abs(cents) < TOLERANCE_CENTS) {
+                int framesWaited = microphone.framesDelivered - microphone.noteStarts[note];
+                latencies[numLatencies++] = framesWaited * 1000.0 / SAMPLE_RATE
+                    + (now - microphone.lastSampleNanos) / 1e6;
+                nextNote++;
+            }
+        }
+        engine.stop();
+        if (!print) {
+            return;
+        }
+        latencies = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(latencies);
+        double total = 0.0;
+        for (double latency : latencies) {
+            total += latency;
+        }
+        int bufferFrames = engine.getDataSize();
+        System.out.println(String.format("%d bit samples, decimation %d, %.1f ms buffers",
+                    8 * bytesPerFrame, decimationFactor, bufferFrames * 1000.0 / SAMPLE_RATE));
+        System.out.println(String.format("  %d of %d note changes detected (%d missed); " +
+                    "latency mean %.1f ms, median %.1f ms, 95th percentile %.1f ms, " +
+                    "max %.1f ms",
+                    numLatencies, NUM_NOTES - 1, missed, total / numLatencies,
+                    latencies[numLatencies / 2], latencies[numLatencies * 95 / 100],
+                    latencies[numLatencies - 1]));
+        System.out.println(String.format("  processing: %.3f ms per buffer", processingNanos
+                    / 1e6 / numBuffers));
+    }
+
+    /**
+     * Plays NUM_NOTES random notes, each a fraction of a second long and a little out of tune,
+     * with a few harmonics so it sounds something like an instrument.
+     */
+    private static class MelodyMicrophone implements Microphone {
+        private final int bytesPerFrame;
+        final double[] frequencies;
+        final int[] noteStarts;
+        int framesDelivered;
+        long lastSampleNanos;
+        private double phase;
+
+        MelodyMicrophone(int bytesPerFrame, Random random) {
+            this.bytesPerFrame = bytesPerFrame;
+            frequencies = new double[NUM_NOTES];
+            noteStarts = new int[NUM_NOTES + 1];
+            int midiNote = MIN_MIDI_NOTE;
+            for (int i=0; i<NUM_NOTES; i++) {
+                int next;
+                do {
+                    next = MIN_MIDI_NOTE + random.nextInt(MAX_MIDI_NOTE - MIN_MIDI_NOTE + 1);
+                } while (next == midiNote);
+                midiNote = next;
+                double detune = random.nextDouble() * 40 - 20;
+                frequencies[i] = 440 * Math.pow(2, (midiNote - 69 + detune / 100) / 12);
+                // Somewhere between a fifth and two fifths of a second long.
+                int length = SAMPLE_RATE / 5 + random.nextInt(SAMPLE_RATE / 5);
+                noteStarts[i+1] = noteStarts[i] + length;
+            }
+        }
+
+        /**
+         * Which note is playing at frame, or -1 if frame is before the start.
+         */
+        int getNoteAt(int frame) {
+            if (frame < 0) {
+                return -1;
+            }
+            int note = 0;
+            while (note < NUM_NOTES - 1 && noteStarts[note+1] <= frame) {
+                note++;
+            }
+            return note;
+        }
+
+        public void initialize() {
+        }
+
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        public int getBufferSize() {
+            return 1 << 14;
+        }
+
+        public int getBytesPerFrame() {
+            return bytesPerFrame;
+        }
+
+        public void start() {
+        }
+
+        public int sample(byte[] buffer) {
+            int frames = buffer.length / bytesPerFrame;
+            if (framesDelivered + frames > noteStarts[NUM_NOTES]) {
+                return 0;
+            }
+            double amplitude = bytesPerFrame == 1 ? 60 : 8000;
+            ByteBuffer b = ByteBuffer.wrap(buffer);
+            int note = getNoteAt(framesDelivered);
+            for (int i=0; i<frames; i++) {
+                if (note < NUM_NOTES - 1 && noteStarts[note+1] <= framesDelivered + i) {
+                    note++;
+                }
+                phase += 2 * Math.PI * frequencies[note] / SAMPLE_RATE;
+                double value = amplitude * (Math.sin(phase) + .5 * Math.sin(2 * phase)
+                        + .25 * Math.sin(3 * phase));
+                if (bytesPerFrame == 1) {
+                    b.put((byte) Math.round(value));
+                } else {
+                    b.putShort((short) Math.round(value));
+                }
+            }
+            framesDelivered += frames;
+            lastSampleNanos = System.nanoTime();
+            return buffer.length;
+        }
+
+        public void stop() {
+        }
+    }
+}
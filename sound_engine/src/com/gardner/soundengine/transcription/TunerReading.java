@@ -0,0 +1,96 @@
+package com.gardner.soundengine.transcription;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * What a TranscriptionEngine in tuner mode heard at one moment: the pitch of the last few
+ * milliseconds of audio, the note it's closest to, and how far off from that note it is.  These
+ * never change once they're made, so the engine can hand one to another thread (like a UI) just
+ * by publishing a reference to it.
+ */
+public final class TunerReading {
+    private final double frequency;
+    private final int midiNote;
+    private final double cents;
+    private final long endFrame;
+    private final double time;
+    private final long nanoTime;
+
+    /**
+     * A reading of frequency Hz, or of no pitch at all if frequency is 0.  endFrame is the frame
+     * just after the last one we looked at, and time is the same thing in seconds.
+     */
+    TunerReading(double frequency, Tuning tuning, long endFrame, double time) {
+        this.frequency = frequency;
+        this.endFrame = endFrame;
+        this.time = time;
+        if (frequency > 0) {
+            midiNote = tuning.findClosestMidiNote(frequency);
+        } else {
+            midiNote = -1;
+        }
+        if (midiNote != -1) {
+            cents = tuning.getCents(frequency, midiNote);
+        } else {
+            cents = 0.0;
+        }
+        nanoTime = System.nanoTime();
+    }
+
+    /**
+     * Whether we heard a pitch we can put a note to.  If not, the audio was quiet, noisy, or
+     * outside of the tuning's range, and there's no note or cents to show.
+     */
+    public boolean hasNote() {
+        return midiNote != -1;
+    }
+
+    /**
+     * The frequency we heard, in Hz, or 0 if we didn't hear a pitch.
+     */
+    public double getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * The MIDI number of the closest note, or -1 if there isn't one.
+     */
+    public int getMidiNote() {
+        return midiNote;
+    }
+
+    /**
+     * The name of the closest note (e.g., A#4), or null if there isn't one.
+     */
+    public String getNoteName() {
+        return NoteUtil.getNoteName(midiNote);
+    }
+
+    /**
+     * How far the frequency is from the closest note, in cents (positive if it's sharp).
+     */
+    public double getCents() {
+        return cents;
+    }
+
+    /**
+     * The frame (in the engine's raw signal) just after the last one this reading looked at.
+     */
+    public long getEndFrame() {
+        return endFrame;
+    }
+
+    /**
+     * Where the end of this reading falls in the audio, in seconds from the start.
+     */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * When this reading was made, from System.nanoTime().
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+}
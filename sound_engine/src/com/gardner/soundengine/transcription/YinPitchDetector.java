@@ -0,0 +1,128 @@
+package com.gardner.soundengine.transcription;
+
+import com.gardner.soundengine.common.*;
+
+/**
+ * Finds a note's pitch in the time domain with the YIN algorithm (de Cheveigne and Kawahara,
+ * 2002): for each candidate period, how different is the signal from itself shifted by that
+ * period?  The first period where it's nearly the same is the pitch.
+ *
+ * This only looks at getWindowSize() samples from the middle of the note, which is a couple of
+ * periods of the lowest note we listen for: about 20 ms with the default lowest frequency of
+ * 100 Hz, or 10 ms for an instrument that doesn't go below 200 Hz.  So it's cheap and doesn't care
+ * how long the note is, and it's usable on the last few milliseconds of a note that's still being
+ * played.  It's less precise than a whole-note FFT, though.
+ */
+public class YinPitchDetector implements PitchDetector {
+    private static final double DEFAULT_MIN_FREQUENCY = 100; // PARAMTODO
+    // How small the normalized difference has to get for a period to count.  The paper uses .1
+    // to .15.
+    private static final double THRESHOLD = .15; // PARAMTODO
+    // If nothing gets under THRESHOLD, we take the best period anyway, unless it's worse than this,
+    // in which case there probably isn't a pitch at all.
+    private static final double MAX_DIFFERENCE = .5; // PARAMTODO
+
+    private final int sampleRate;
+    private final int minLag;
+    private final int maxLag;
+    private final int integrationWindow;
+    private final double[] samples;
+    private final double[] differences;
+
+    public YinPitchDetector(int sampleRate, Tuning tuning) {
+        this(sampleRate, tuning, DEFAULT_MIN_FREQUENCY);
+    }
+
+    /**
+     * Create a detector that only looks for pitches between minFrequency and the top of tuning.
+     * The lower minFrequency is, the more of the signal we need to look at.
+     */
+    public YinPitchDetector(int sampleRate, Tuning tuning, double minFrequency) {
+        minFrequency = Math.max(minFrequency, tuning.getMinFrequency());
+        if (minFrequency >= tuning.getMaxFrequency()) {
+            throw new IllegalArgumentException("Minimum frequency is above the tuning's range: "
+                    + minFrequency);
+        }
+        this.sampleRate = sampleRate;
+        minLag = Math.max(2, (int) (sampleRate / tuning.getMaxFrequency()));
+        maxLag = (int) Math.ceil(sampleRate / minFrequency);
+        integrationWindow = maxLag;
+        samples = new double[integrationWindow + maxLag + 1];
+        differences = new double[maxLag + 2];
+    }
+
+    /**
+     * How many samples of a note we need to find its pitch.
+     */
+    public int getWindowSize() {
+        return samples.length;
+    }
+
+    public double detectPitch(SignalBuffer signal, long start, long end, double likelyPitch) {
+        if (end - start < samples.length) {
+            return 0.0;
+        }
+        long first = start + (end - start - samples.length) / 2;
+        signal.checkRange(first, first + samples.length);
+        short[] data = signal.getSamples();
+        int mask = signal.getMask();
+        int wrappedFirst = (int) (first & mask);
+        for (int i=0; i<samples.length; i++) {
+            samples[i] = data[(wrappedFirst + i) & mask];
+        }
+
+        // The difference function, normalized by its running mean so that it starts at 1 and
+        // doesn't favor tiny periods.
+        double runningSum = 0.0;
+        differences[0] = 1.0;
+        for (int lag=1; lag<=maxLag+1; lag++) {
+            double sum = 0.0;
+            for (int j=0; j<integrationWindow; j++) {
+                double diff = samples[j] - samples[j + lag];
+                sum += diff * diff;
+            }
+            runningSum += sum;
+            differences[lag] = runningSum == 0.0 ? 1.0 : sum * lag / runningSum;
+        }
+
+        // The first dip under the threshold, followed down to its bottom, or failing that the
+        // lowest point overall.
+        int bestLag = -1;
+        for (int lag=minLag; lag<=maxLag; lag++) {
+            if (differences[lag] < THRESHOLD) {
+                while (lag < maxLag && differences[lag+1] < differences[lag]) {
+                    lag++;
+                }
+                bestLag = lag;
+                break;
+            }
+        }
+        if (bestLag == -1) {
+            bestLag = minLag;
+            for (int lag=minLag; lag<=maxLag; lag++) {
+                if (differences[lag] < differences[bestLag]) {
+                    bestLag = lag;
+                }
+            }
+            if (differences[bestLag] > MAX_DIFFERENCE) {
+                return 0.0;
+            }
+        }
+
+        // Periods are only whole samples apart, which at high pitches is a big difference, so fit
+        // a parabola through the dip to find where its bottom really is.
+        double left = differences[bestLag-1];
+        double center = differences[bestLag];
+        double right = differences[bestLag+1];
+        double period = bestLag;
+        double denominator = left - 2 * center + right;
+        if (denominator > 0) {
+            period += .5 * (left - right) / denominator;
+        }
+        return sampleRate / period;
+    }
+
+    public int getNumFfts() {
+        return 0;
+    }
+}
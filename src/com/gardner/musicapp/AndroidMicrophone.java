@@ -7,7 +7,7 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 
-import com.gardner.soundengine.Microphone;
+import com.gardner.soundengine.microphone.Microphone;
 
 public class AndroidMicrophone implements Microphone {
     public static final String TAG = "musicapp.AndroidMicrophone";
@@ -16,6 +16,7 @@ public class AndroidMicrophone implements Microphone {
 
     private int sampleRate;
     private int bufferSize;
+    private int bytesPerFrame;
 
     private AudioRecord mic;
 
@@ -40,9 +41,37 @@ public class AndroidMicrophone implements Microphone {
         return sampleRate;
     }
 
+    @Override
+    public int getBytesPerFrame() {
+        return bytesPerFrame;
+    }
+
+    /**
+     * Fill buffer from the mic.  bufferSize is the size of the AudioRecord's own buffer, which is
+     * much bigger than what the engine asks for at a time, so we read buffer.length bytes.
+     *
+     * Android hands us samples in a different format than the engine expects: 8 bit PCM is
+     * unsigned, and 16 bit PCM is little-endian, while the engine reads signed samples and
+     * big-endian shorts (like the desktop microphone's).  So we convert in place.
+     */
     @Override
     public int sample(byte[] buffer) {
-        return mic.read(buffer, 0, bufferSize);
+        int bytes = mic.read(buffer, 0, buffer.length);
+        if (bytes <= 0) {
+            return bytes;
+        }
+        if (bytesPerFrame == 1) {
+            for (int i=0; i<bytes; i++) {
+                buffer[i] = (byte) (buffer[i] ^ 0x80);
+            }
+        } else {
+            for (int i=0; i+1<bytes; i+=2) {
+                byte low = buffer[i];
+                buffer[i] = buffer[i+1];
+                buffer[i+1] = low;
+            }
+        }
+        return bytes;
     }
 
     @Override
@@ -54,10 +83,12 @@ public class AndroidMicrophone implements Microphone {
     // The variables and method below were taken almost verbatim from StackOverflow:
     // http://stackoverflow.com/questions/4843739/audiorecord-object-not-initializing
     private int[] sampleRates = new int[] { 44100, 22050, 11025, 8000 };
+    // 16 bit is more precise and is supported everywhere, so we try it first.  The engine only
+    // handles mono audio, so we don't try stereo.
     private short[] encodings =
-        new short[] { AudioFormat.ENCODING_PCM_8BIT, AudioFormat.ENCODING_PCM_16BIT };
+        new short[] { AudioFormat.ENCODING_PCM_16BIT, AudioFormat.ENCODING_PCM_8BIT };
     private short[] channels =
-        new short[] { AudioFormat.CHANNEL_IN_MONO, AudioFormat.CHANNEL_IN_STEREO };
+        new short[] { AudioFormat.CHANNEL_IN_MONO };
 
     private AudioRecord findMicrophoneSettings() {
         int i=0;
@@ -77,6 +108,11 @@ public class AndroidMicrophone implements Microphone {
                             if (recorder.getState() == AudioRecord.STATE_INITIALIZED) {
                                 Log.d(TAG, "Success!");
                                 sampleRate = rate;
+                                if (encoding == AudioFormat.ENCODING_PCM_8BIT) {
+                                    bytesPerFrame = 1;
+                                } else {
+                                    bytesPerFrame = 2;
+                                }
                                 Log.d(TAG, "Sample rate: " + sampleRate);
                                 Log.d(TAG, "Buffer size: " + bufferSize);
                                 return recorder;
@@ -20,16 +20,21 @@ import org.achartengine.model.XYMultipleSeriesDataset;
 import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 
-import com.gardner.soundengine.SoundEngine;
+import com.gardner.soundengine.transcription.TranscriptionEngine;
+import com.gardner.soundengine.transcription.TunerReading;
 
 public class MainActivity extends Activity {
 
     public static final String TAG = "musicapp.Main";
+    // How many readings the graph shows.  We get one every time the engine reads from the mic,
+    // about every 12 ms, so this is a few seconds.
+    private static final int GRAPH_READINGS = 500;
 
     private TextView freqText;
     private TextView noteText;
     private TextView diffText;
-    private SoundEngine engine;
+    private TranscriptionEngine engine;
+    private TunerReading lastReading;
     private SoundEngineRunner runner;
     private Handler handler;
     private Runnable callback;
@@ -52,7 +57,9 @@ public class MainActivity extends Activity {
         setContentView(R.layout.main);
         handler = new Handler();
         callback = new FrequencyUpdater();
-        engine = new SoundEngine(new AndroidMicrophone());
+        // The tuner only needs the last few milliseconds, so we don't have to keep much around.
+        engine = new TranscriptionEngine(new AndroidMicrophone(), 5.0);
+        engine.setTunerMode(true);
         runner = new SoundEngineRunner(handler, callback, engine);
 
         freqText = (TextView) findViewById(R.id.freq_text);
@@ -82,11 +89,11 @@ public class MainActivity extends Activity {
         });
 
         renderer = new XYMultipleSeriesRenderer();
-        renderer.setYAxisMin(0.0);
-        renderer.setYAxisMax(25000.0);
+        renderer.setYAxisMin(-50.0);
+        renderer.setYAxisMax(50.0);
         seriesRenderer = new XYSeriesRenderer();
         renderer.addSeriesRenderer(seriesRenderer);
-        freqData = new XYSeries("Frequency Magnitudes");
+        freqData = new XYSeries("Cents");
         dataset = new XYMultipleSeriesDataset();
         dataset.addSeries(freqData);
         graphicalView = ChartFactory.getLineChartView(this, dataset, renderer);
@@ -127,27 +134,23 @@ public class MainActivity extends Activity {
         runner = new SoundEngineRunner(handler, callback, engine);
     }
 
-    private void updateMaxFrequency() {
-        double freq = engine.getCurrentFrequency();
-        if (freq == -1) return;
-        freqText.setText(Double.toString(freq));
-        String note = engine.getCurrentClosestNote();
-        if (note == null) {
+    private void updateMaxFrequency(TunerReading reading) {
+        if (reading.getFrequency() == 0) return;
+        freqText.setText(String.format("%.1f", reading.getFrequency()));
+        if (!reading.hasNote()) {
             noteText.setText("Out of range");
             diffText.setText("Out of range");
         } else {
-            noteText.setText(note);
-            double noteFreq = engine.getNoteFrequency(note);
-            diffText.setText(Double.toString(freq - noteFreq));
+            noteText.setText(reading.getNoteName());
+            diffText.setText(String.format("%+.0f cents", reading.getCents()));
         }
     }
 
-    private void updateFreqGraph() {
-        freqData.clear();
-        double[] currentMags = engine.getCurrentMags();
-        int num_bins = currentMags.length / 2;
-        for (int i=0; i<num_bins; i++) {
-            freqData.add(currentMags[2*i], currentMags[2*i+1]);
+    private void updateFreqGraph(TunerReading reading) {
+        if (!reading.hasNote()) return;
+        freqData.add(reading.getTime(), reading.getCents());
+        while (freqData.getItemCount() > GRAPH_READINGS) {
+            freqData.remove(0);
         }
         graphicalView.repaint();
     }
@@ -155,8 +158,13 @@ public class MainActivity extends Activity {
     private class FrequencyUpdater implements Runnable {
         @Override
         public void run() {
-            updateMaxFrequency();
-            updateFreqGraph();
+            // The engine publishes a new reading every hop from the runner thread; we just take
+            // whatever the latest one is, without ever waiting on the engine.
+            TunerReading reading = engine.getTunerReading();
+            if (reading == null || reading == lastReading) return;
+            lastReading = reading;
+            updateMaxFrequency(reading);
+            updateFreqGraph(reading);
         }
 
     }
@@ -2,15 +2,15 @@ package com.gardner.musicapp;
 
 import android.os.Handler;
 
-import com.gardner.soundengine.SoundEngine;
+import com.gardner.soundengine.transcription.TranscriptionEngine;
 
 public class SoundEngineRunner extends Thread {
     private Handler handler;
     private Runnable callback;
-    private SoundEngine engine;
+    private TranscriptionEngine engine;
 
     public SoundEngineRunner(Handler handler, Runnable callback,
-            SoundEngine engine) {
+            TranscriptionEngine engine) {
         this.engine = engine;
         this.handler = handler;
         this.callback = callback;